@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.cluster;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Keeps the most recent response times and estimates a percentile over them.
+// The estimate is refreshed once per `SAMPLES / 8` recorded values by the recording thread.
+public class LatencySampler {
+    private static final int SAMPLES = 1024;
+    private static final int REFRESH_INTERVAL = SAMPLES / 8;
+
+    private final double percentile;
+    private final long[] samples = new long[SAMPLES];
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile long value = -1;
+
+    public LatencySampler(double percentile) {
+        this.percentile = percentile;
+    }
+
+    public void record(long nanos) {
+        int n = count.getAndIncrement();
+        samples[n & (SAMPLES - 1)] = nanos;
+        if ((n + 1) % REFRESH_INTERVAL == 0) {
+            long[] sorted = samples.clone();
+            int size = n >= 0 && n < SAMPLES ? n + 1 : SAMPLES;
+            Arrays.sort(sorted, 0, size);
+            value = sorted[(int) (size * percentile)];
+        }
+    }
+
+    // Returns -1 until enough samples are collected
+    public long getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.cluster;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Load of a single provider as seen by the client: requests in flight
+// and exponentially weighted moving average of response time
+public class ProviderLoad {
+    private static final double DECAY = 0.1;
+    private static final double MAX_FAILURE_PENALTY = 10e9;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double latency;
+
+    public long requestStarted() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    public void requestCompleted(long startTime, boolean success) {
+        inFlight.decrementAndGet();
+        double elapsed = System.nanoTime() - startTime;
+        double latency = this.latency;
+        if (!success) {
+            // A failure is not faster than a typical response, however quickly it happens
+            elapsed = Math.max(elapsed, Math.min(latency * 2, MAX_FAILURE_PENALTY));
+        }
+        // Concurrent updates may occasionally be lost, which is fine for an estimate
+        this.latency = latency == 0 ? elapsed : latency + (elapsed - latency) * DECAY;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public double getLatency() {
+        return latency;
+    }
+
+    // Expected wait for a new request; an unknown provider is assumed to be fast
+    public double cost() {
+        return (latency + 1) * (inFlight.get() + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "ProviderLoad[inFlight=" + inFlight.get() + ", latency=" + (long) (latency / 1000) + "us]";
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.cluster;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Limits retries and hedged requests to a fraction of the regular traffic.
+// Every request deposits `ratio` of a retry; every retry withdraws a whole one.
+// In addition, `minPerSecond` retries are always allowed so that a quiet client can still retry.
+public class RetryBudget {
+    private static final long UNIT = 1000;
+
+    private final long deposit;
+    private final long maxBalance;
+    private final int minPerSecond;
+    private final AtomicLong balance = new AtomicLong();
+    private final AtomicLong reserve = new AtomicLong();
+    private volatile long currentSecond;
+
+    public RetryBudget(double ratio, int minPerSecond) {
+        this.deposit = (long) (ratio * UNIT);
+        this.maxBalance = Math.max((long) (ratio * UNIT * 1000), UNIT);
+        this.minPerSecond = minPerSecond;
+    }
+
+    public void deposit() {
+        for (;;) {
+            long current = balance.get();
+            long updated = Math.min(current + deposit, maxBalance);
+            if (current == updated || balance.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    public boolean tryWithdraw() {
+        for (long current; (current = balance.get()) >= UNIT; ) {
+            if (balance.compareAndSet(current, current - UNIT)) {
+                return true;
+            }
+        }
+        return withdrawReserve();
+    }
+
+    private boolean withdrawReserve() {
+        long second = System.currentTimeMillis() / 1000;
+        if (second != currentSecond) {
+            currentSecond = second;
+            reserve.set(0);
+        }
+        return reserve.incrementAndGet() <= minPerSecond;
+    }
+
+    public double getBalance() {
+        return (double) balance.get() / UNIT;
+    }
+}
@@ -27,14 +27,17 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class WeightCluster<T extends ServiceProvider> implements Cluster<T> {
     protected static final Logger log = LoggerFactory.getLogger(WeightCluster.class);
 
     protected final Random random = new Random();
     protected final HashMap<T, Integer> providers = new HashMap<T, Integer>();
+    protected final ConcurrentHashMap<T, ProviderLoad> loads = new ConcurrentHashMap<T, ProviderLoad>();
     protected Timer monitorTimer;
     protected long monitorTimeout;
+    protected boolean leastLoaded;
     protected volatile ProviderSelector providerSelector;
 
     public WeightCluster() {
@@ -58,6 +61,28 @@ public class WeightCluster<T extends ServiceProvider> implements Cluster<T> {
         this.monitorTimeout = monitorTimeout;
     }
 
+    public boolean isLeastLoaded() {
+        return leastLoaded;
+    }
+
+    // Power of two choices: draw two providers by weight and take the one
+    // with less requests in flight and lower average latency
+    public synchronized void setLeastLoaded(boolean leastLoaded) {
+        this.leastLoaded = leastLoaded;
+        rebuildProviderSelector();
+    }
+
+    // Callers report every request through the provider's load to make least loaded balancing work
+    public ProviderLoad getLoad(T provider) {
+        ProviderLoad load = loads.get(provider);
+        if (load == null) {
+            ProviderLoad newLoad = new ProviderLoad();
+            load = loads.putIfAbsent(provider, newLoad);
+            if (load == null) load = newLoad;
+        }
+        return load;
+    }
+
     @Override
     public T getProvider() throws ServiceUnavailableException {
         return providerSelector.select();
@@ -116,7 +141,8 @@ public class WeightCluster<T extends ServiceProvider> implements Cluster<T> {
     }
 
     protected synchronized void rebuildProviderSelector() {
-        this.providerSelector = new ProviderSelector(providers);
+        loads.keySet().retainAll(providers.keySet());
+        this.providerSelector = leastLoaded ? new LeastLoadedSelector(providers) : new ProviderSelector(providers);
     }
 
     public class ProviderSelector {
@@ -144,18 +170,48 @@ public class WeightCluster<T extends ServiceProvider> implements Cluster<T> {
 
         public T select() throws ServiceUnavailableException {
             if (weightRange > 0) {
-                int w = random.nextInt(weightRange);
-                int low = 0;
-                int high = weights.length - 1;
-                while (low < high) {
-                    int med = (low + high) >>> 1;
-                    if (w < weights[med]) {
-                        high = med;
-                    } else {
-                        low = med + 1;
-                    }
+                return providers[selectIndex()];
+            }
+            throw new ServiceUnavailableException("No providers available");
+        }
+
+        protected int selectIndex() {
+            int w = random.nextInt(weightRange);
+            int low = 0;
+            int high = weights.length - 1;
+            while (low < high) {
+                int med = (low + high) >>> 1;
+                if (w < weights[med]) {
+                    high = med;
+                } else {
+                    low = med + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    public class LeastLoadedSelector extends ProviderSelector {
+        public final ProviderLoad[] loads;
+
+        public LeastLoadedSelector(Map<T, Integer> providers) {
+            super(providers);
+            this.loads = new ProviderLoad[this.providers.length];
+            for (int i = 0; i < loads.length; i++) {
+                loads[i] = getLoad(this.providers[i]);
+            }
+        }
+
+        @Override
+        public T select() throws ServiceUnavailableException {
+            if (weightRange > 0) {
+                int first = selectIndex();
+                int second = selectIndex();
+                if (second == first) {
+                    // One more try to get a distinct pair; a dominant weight may still give the same provider
+                    second = selectIndex();
                 }
-                return providers[low];
+                return providers[loads[second].cost() < loads[first].cost() ? second : first];
             }
             throw new ServiceUnavailableException("No providers available");
         }
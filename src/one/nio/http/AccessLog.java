@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import one.nio.mem.DirectMemory;
+import one.nio.mem.MappedFile;
+import one.nio.util.JavaInternals;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.misc.Unsafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Binary access log. Request threads put fixed-size records into a lock-free off-heap ring buffer
+// without any formatting or I/O; a background thread copies them to a memory-mapped file.
+// When the buffer is full, records are dropped and counted rather than blocking the caller.
+//
+// File layout: 16-byte header (MAGIC, RECORD_SIZE, 0) followed by 128-byte records:
+//    0: long   time, epoch millis
+//    8: int    duration, microseconds since the request line was received
+//   12: int    response length including headers; -1 for chunked responses
+//   16: short  status code
+//   18: byte   method
+//   19: byte   flags (FLAG_HTTP11, FLAG_KEEP_ALIVE, FLAG_IPV6)
+//   20: short  URI length stored
+//   22: short  reserved
+//   24: byte[16] client address; IPv4 occupies the first 4 bytes
+//   40: byte[88] URI, truncated
+public class AccessLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+    private static final Unsafe unsafe = JavaInternals.unsafe;
+
+    public static final long MAGIC = 0x4e494f4143434c31L;  // "NIOACCL1"
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 128;
+
+    public static final int TIME_OFFSET     = 0;
+    public static final int DURATION_OFFSET = 8;
+    public static final int LENGTH_OFFSET   = 12;
+    public static final int STATUS_OFFSET   = 16;
+    public static final int METHOD_OFFSET   = 18;
+    public static final int FLAGS_OFFSET    = 19;
+    public static final int URI_LENGTH_OFFSET = 20;
+    public static final int ADDRESS_OFFSET  = 24;
+    public static final int URI_OFFSET      = 40;
+    public static final int MAX_URI_LENGTH  = RECORD_SIZE - URI_OFFSET;
+
+    public static final int FLAG_HTTP11     = 1;
+    public static final int FLAG_KEEP_ALIVE = 2;
+    public static final int FLAG_IPV6       = 4;
+
+    private static final long IDLE_PARK_NANOS = 1000000;
+
+    private final String path;
+    private final long fileSize;
+    private final long rotateInterval;
+
+    private final long buffer;
+    private final int capacity;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLongArray published;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger producers = new AtomicInteger();
+    private volatile long head;
+    private volatile boolean closed;
+
+    private final Writer writer;
+    private MappedFile file;
+    private long position;
+    private long rotateTime;
+
+    // capacity is the number of records in the ring buffer, must be a power of 2
+    public AccessLog(String path, long fileSize, int capacity, long rotateInterval) throws IOException {
+        if ((capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of 2");
+        }
+
+        this.path = path;
+        this.fileSize = (fileSize / RECORD_SIZE) * RECORD_SIZE + HEADER_SIZE;
+        this.rotateInterval = rotateInterval;
+        this.buffer = DirectMemory.allocateRaw((long) capacity * RECORD_SIZE);
+        this.capacity = capacity;
+        this.published = new AtomicLongArray(capacity);
+
+        File existing = new File(path);
+        if (existing.exists()) {
+            archive(existing);
+        }
+        openFile();
+
+        this.writer = new Writer();
+        writer.start();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void log(Request request, byte[] clientAddress, int status, int length, boolean keepAlive) {
+        // The buffer is freed by close() once no producer is inside put()
+        producers.incrementAndGet();
+        try {
+            if (!closed) {
+                put(request, clientAddress, status, length, keepAlive);
+            }
+        } finally {
+            producers.decrementAndGet();
+        }
+    }
+
+    private void put(Request request, byte[] clientAddress, int status, int length, boolean keepAlive) {
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= capacity) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        int slot = (int) seq & (capacity - 1);
+        long record = buffer + (long) slot * RECORD_SIZE;
+
+        long startTime = request.getStartTime();
+        int duration = startTime == 0 ? 0 : (int) Math.min((System.nanoTime() - startTime) / 1000, Integer.MAX_VALUE);
+        int flags = (request.isHttp11() ? FLAG_HTTP11 : 0) | (keepAlive ? FLAG_KEEP_ALIVE : 0);
+        if (clientAddress != null && clientAddress.length == 16) {
+            flags |= FLAG_IPV6;
+        }
+
+        unsafe.putLong(record + TIME_OFFSET, System.currentTimeMillis());
+        unsafe.putInt(record + DURATION_OFFSET, duration);
+        unsafe.putInt(record + LENGTH_OFFSET, length);
+        unsafe.putShort(record + STATUS_OFFSET, (short) status);
+        unsafe.putByte(record + METHOD_OFFSET, (byte) request.getMethod());
+        unsafe.putByte(record + FLAGS_OFFSET, (byte) flags);
+
+        unsafe.setMemory(record + ADDRESS_OFFSET, 16, (byte) 0);
+        if (clientAddress != null) {
+            unsafe.copyMemory(clientAddress, JavaInternals.byteArrayOffset, null, record + ADDRESS_OFFSET, clientAddress.length);
+        }
+
+        String uri = request.getURI();
+        int uriLength = Math.min(uri.length(), MAX_URI_LENGTH);
+        for (int i = 0; i < uriLength; i++) {
+            char c = uri.charAt(i);
+            unsafe.putByte(record + URI_OFFSET + i, c < 0x80 ? (byte) c : (byte) '?');
+        }
+        unsafe.putShort(record + URI_LENGTH_OFFSET, (short) uriLength);
+
+        published.lazySet(slot, seq + 1);
+    }
+
+    // Extracts the status code from an encoded "HTTP/1.1 XXX ..." response
+    public static int statusOf(byte[] response) {
+        if (response.length < 12) {
+            return 0;
+        }
+        return (response[9] - '0') * 100 + (response[10] - '0') * 10 + (response[11] - '0');
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // Wait for producers that have seen the log open
+        while (producers.get() != 0) {
+            Thread.yield();
+        }
+
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        DirectMemory.freeRaw(buffer);
+    }
+
+    // Called by the writer thread only
+    private int drain() throws IOException {
+        int count = 0;
+        for (long seq = head; published.get((int) seq & (capacity - 1)) == seq + 1; seq++) {
+            if (position + RECORD_SIZE > fileSize) {
+                rotate();
+            }
+            long record = buffer + (long) ((int) seq & (capacity - 1)) * RECORD_SIZE;
+            unsafe.copyMemory(record, file.getAddr() + position, RECORD_SIZE);
+            position += RECORD_SIZE;
+            head = seq + 1;
+            count++;
+        }
+        return count;
+    }
+
+    private void openFile() throws IOException {
+        file = new MappedFile(path, fileSize);
+        unsafe.putLong(file.getAddr(), MAGIC);
+        unsafe.putInt(file.getAddr() + 8, RECORD_SIZE);
+        unsafe.putInt(file.getAddr() + 12, 0);
+        position = HEADER_SIZE;
+        rotateTime = rotateInterval > 0 ? System.currentTimeMillis() + rotateInterval : Long.MAX_VALUE;
+    }
+
+    // Truncates the current file to the actual data length and renames it
+    private void closeFile() throws IOException {
+        file.getFile().setLength(position);
+        file.close();
+        archive(new File(path));
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        openFile();
+    }
+
+    private void archive(File current) throws IOException {
+        String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File target = new File(path + '.' + suffix);
+        for (int i = 1; target.exists(); i++) {
+            target = new File(path + '.' + suffix + '.' + i);
+        }
+        if (!current.renameTo(target)) {
+            throw new IOException("Cannot rename " + current + " to " + target);
+        }
+    }
+
+    private class Writer extends Thread {
+
+        Writer() {
+            super("AccessLog Writer");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    if (drain() == 0) {
+                        if (System.currentTimeMillis() >= rotateTime && position > HEADER_SIZE) {
+                            rotate();
+                        }
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                } catch (Throwable e) {
+                    log.error("Cannot write access log " + path, e);
+                    LockSupport.parkNanos(IDLE_PARK_NANOS * 1000);
+                }
+            }
+
+            try {
+                drain();
+                closeFile();
+            } catch (IOException e) {
+                log.error("Cannot close access log " + path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,696 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import one.nio.net.ConnectionString;
+import one.nio.net.Selector;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+import one.nio.net.SslContext;
+import one.nio.util.ByteArrayBuilder;
+import one.nio.util.Utf8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Non-blocking HTTP/1.1 client. Requests are written to a few persistent connections without waiting
+// for previous responses (pipelining); responses are parsed by a selector thread and delivered
+// through CompletableFuture in request order. A new connection is opened when none of the open ones
+// is idle, up to `connections`. Each connection carries at most `pipeline` requests; beyond that requests wait in a queue
+// of at most `queueSize` entries and are sent as soon as a response frees a pipeline slot.
+// Futures are completed on the selector thread: use *Async continuations for heavy work.
+public class AsyncHttpClient implements Closeable {
+    private static final int BUFFER_SIZE = 8000;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final long TIMEOUT_CHECK_INTERVAL = 100;
+
+    protected final String host;
+    protected final int port;
+    protected final String hostHeader;
+    protected final SslContext sslContext;
+    protected final int timeout;
+    protected final int connectTimeout;
+    protected final int pipeline;
+    protected final int queueSize;
+    protected final int maxBodySize;
+    protected final Connection[] connections;
+    protected final boolean[] connecting;
+    protected final ArrayDeque<Exchange> waiting = new ArrayDeque<Exchange>();
+    protected final Selector selector;
+    protected final Timer timer;
+    protected final ThreadPoolExecutor connector;
+    protected volatile boolean closed;
+
+    public AsyncHttpClient(ConnectionString conn) throws IOException {
+        boolean https = "https".equals(conn.getProtocol());
+        this.host = conn.getHost();
+        this.port = conn.getPort() != 0 ? conn.getPort() : https ? 443 : 80;
+        this.hostHeader = "Host: " + host;
+        this.sslContext = https ? SslContext.getDefault() : null;
+        this.timeout = conn.getIntParam("timeout", 3000);
+        this.connectTimeout = conn.getIntParam("connectTimeout", timeout);
+        this.pipeline = conn.getIntParam("pipeline", 16);
+        this.queueSize = conn.getIntParam("queueSize", 65536);
+        this.maxBodySize = conn.getIntParam("maxBodySize", Integer.MAX_VALUE - 8);
+        this.connections = new Connection[conn.getIntParam("connections", 2)];
+        this.connecting = new boolean[connections.length];
+        this.selector = Selector.create();
+        this.timer = new Timer("AsyncHttpClient " + host + ':' + port, true);
+
+        // Blocking connects have threads of their own, so that they do not delay timeout checks and resends
+        this.connector = new ThreadPoolExecutor(connections.length, connections.length, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AsyncHttpClient Connector " + host + ':' + port);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        connector.allowCoreThreadTimeOut(true);
+
+        Thread selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelector();
+            }
+        }, "AsyncHttpClient Selector " + host + ':' + port);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                checkTimeouts();
+            }
+        }, TIMEOUT_CHECK_INTERVAL, TIMEOUT_CHECK_INTERVAL);
+    }
+
+    public CompletableFuture<Response> invoke(Request request) {
+        boolean lastRequest = "close".equalsIgnoreCase(request.getHeader("Connection: "));
+        Exchange exchange = new Exchange(request.getMethod(), request.toBytes(), lastRequest);
+        send(exchange);
+        return exchange;
+    }
+
+    public CompletableFuture<Response> get(String uri, String... headers) {
+        return invoke(createRequest(Request.METHOD_GET, uri, headers));
+    }
+
+    public CompletableFuture<Response> post(String uri, byte[] body, String... headers) {
+        Request request = createRequest(Request.METHOD_POST, uri, headers);
+        request.addHeader("Content-Length: " + body.length);
+        request.setBody(body);
+        return invoke(request);
+    }
+
+    public CompletableFuture<Response> head(String uri, String... headers) {
+        return invoke(createRequest(Request.METHOD_HEAD, uri, headers));
+    }
+
+    private Request createRequest(int method, String uri, String... headers) {
+        Request request = new Request(method, uri, true);
+        request.addHeader(hostHeader);
+        for (String header : headers) {
+            request.addHeader(header);
+        }
+        return request;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        timer.cancel();
+        connector.shutdown();
+        ArrayDeque<Exchange> waiting;
+        synchronized (this) {
+            for (Connection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+            waiting = this.waiting.clone();
+            this.waiting.clear();
+        }
+        for (Exchange exchange : waiting) {
+            exchange.completeExceptionally(new SocketException("Client closed"));
+        }
+        selector.close();
+    }
+
+    protected void send(Exchange exchange) {
+        try {
+            // A connection may get closed by the server right after it was chosen
+            for (int attempt = 0; ; attempt++) {
+                if (closed || attempt > connections.length) {
+                    throw new SocketException(closed ? "Client closed" : "Cannot send request");
+                }
+                Connection connection = acquireConnection(exchange);
+                if (connection == null || connection.send(exchange)) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            exchange.completeExceptionally(e);
+        }
+    }
+
+    // Prefers the least loaded connection with a free pipeline slot and starts opening a new one
+    // if there is none. If no open connection can take the request, puts it into the waiting queue
+    // and returns null
+    protected synchronized Connection acquireConnection(Exchange exchange) throws IOException {
+        Connection best = null;
+        int freeSlot = -1;
+        for (int i = 0; i < connections.length; i++) {
+            Connection connection = connections[i];
+            if (connecting[i]) {
+                // Will send waiting requests once connected
+            } else if (connection == null || !connection.isOpen()) {
+                if (freeSlot < 0) freeSlot = i;
+            } else if (connection.draining) {
+                // The server will close this connection after the request with "Connection: close"
+            } else if (best == null || connection.inFlight < best.inFlight) {
+                best = connection;
+            }
+        }
+
+        if (best != null && best.inFlight == 0) {
+            return best;
+        } else if (freeSlot >= 0) {
+            connectAsync(freeSlot);
+        }
+
+        if (best != null && best.inFlight < pipeline) {
+            return best;
+        } else if (waiting.size() < queueSize) {
+            exchange.deadline = System.currentTimeMillis() + timeout;
+            waiting.addLast(exchange);
+            return null;
+        }
+        throw new SocketException("Request queue is full");
+    }
+
+    // Called when a connection has got a free pipeline slot
+    private void sendWaiting(Connection connection) {
+        Exchange exchange;
+        synchronized (this) {
+            if ((exchange = waiting.pollFirst()) == null) {
+                return;
+            }
+        }
+        if (!connection.send(exchange)) {
+            // The connection is going away; its close() will resend the waiting requests
+            synchronized (this) {
+                waiting.addFirst(exchange);
+            }
+            if (!connection.isOpen()) {
+                resendWaiting();
+            }
+        }
+    }
+
+    // After a connection is lost, waiting requests are sent from the timer thread, since this may connect
+    private void resendWaiting() {
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                for (;;) {
+                    Exchange exchange;
+                    synchronized (AsyncHttpClient.this) {
+                        if ((exchange = waiting.pollFirst()) == null) {
+                            return;
+                        }
+                    }
+                    send(exchange);
+                    synchronized (AsyncHttpClient.this) {
+                        // Stop if the request went back to the queue: no connection has a free slot
+                        if (waiting.peekLast() == exchange) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, 0);
+    }
+
+    // Connections are opened by the connector, so that neither the caller nor other requests wait for it.
+    // Called with the client lock held
+    private void connectAsync(final int slot) {
+        try {
+            connector.execute(new Runnable() {
+                @Override
+                public void run() {
+                    openConnection(slot);
+                }
+            });
+            connecting[slot] = true;
+        } catch (RejectedExecutionException e) {
+            // The client is closed
+        }
+    }
+
+    private void openConnection(int slot) {
+        Connection connection = null;
+        IOException error = null;
+        try {
+            connection = connect();
+        } catch (IOException e) {
+            error = e;
+        }
+
+        ArrayDeque<Exchange> failed = null;
+        synchronized (this) {
+            connecting[slot] = false;
+            if (connection != null && !closed) {
+                connections[slot] = connection;
+            } else if (connection == null && !hasOpenConnection()) {
+                // Nothing else can serve the waiting requests
+                failed = waiting.clone();
+                waiting.clear();
+            }
+        }
+
+        if (connection == null) {
+            if (failed != null) {
+                for (Exchange exchange : failed) {
+                    exchange.completeExceptionally(error);
+                }
+            }
+        } else if (closed) {
+            connection.close();
+        } else {
+            for (int i = 0; i < pipeline && hasWaiting(); i++) {
+                sendWaiting(connection);
+            }
+        }
+    }
+
+    private synchronized boolean hasOpenConnection() {
+        for (int i = 0; i < connections.length; i++) {
+            if (connecting[i] || connections[i] != null && connections[i].isOpen()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized boolean hasWaiting() {
+        return !waiting.isEmpty();
+    }
+
+    protected Connection connect() throws IOException {
+        Socket socket = Socket.create();
+        try {
+            socket.setKeepAlive(true);
+            socket.setNoDelay(true);
+            socket.setTimeout(connectTimeout);
+            socket.connect(host, port);
+            socket.setBlocking(false);
+            if (sslContext != null) {
+                socket = socket.ssl(sslContext);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        Connection connection = new Connection(socket);
+        selector.register(connection);
+        return connection;
+    }
+
+    private void runSelector() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (selector.isOpen()) {
+            for (Iterator<Session> selectedSessions = selector.select(); selectedSessions.hasNext(); ) {
+                Session session = selectedSessions.next();
+                try {
+                    session.process(buffer);
+                } catch (Throwable e) {
+                    session.handleException(e);
+                }
+            }
+        }
+    }
+
+    private void checkTimeouts() {
+        long currentTime = System.currentTimeMillis();
+        Connection[] connections;
+        synchronized (this) {
+            connections = this.connections.clone();
+        }
+        for (Connection connection : connections) {
+            if (connection != null && connection.isTimedOut(currentTime)) {
+                connection.abort(new SocketTimeoutException("Request timed out"));
+            }
+        }
+
+        while (true) {
+            Exchange exchange;
+            synchronized (this) {
+                exchange = waiting.peekFirst();
+                if (exchange == null || currentTime < exchange.deadline) {
+                    break;
+                }
+                waiting.pollFirst();
+            }
+            exchange.completeExceptionally(new SocketTimeoutException("Request timed out in queue"));
+        }
+    }
+
+    // Requests that never got a response are retried once on another connection if idempotent
+    private void retry(final Exchange exchange) {
+        exchange.retried = true;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                send(exchange);
+            }
+        }, 0);
+    }
+
+    protected static class Exchange extends CompletableFuture<Response> {
+        final int method;
+        final byte[] rawRequest;
+        final boolean lastRequest;
+        long deadline;
+        boolean retried;
+
+        Exchange(int method, byte[] rawRequest, boolean lastRequest) {
+            this.method = method;
+            this.rawRequest = rawRequest;
+            this.lastRequest = lastRequest;
+        }
+
+        boolean isRetriable() {
+            return !retried && method != Request.METHOD_POST;
+        }
+    }
+
+    protected class Connection extends Session {
+        private static final int STATUS_LINE = 0;
+        private static final int HEADERS     = 1;
+        private static final int BODY        = 2;
+        private static final int CHUNK_SIZE  = 3;
+        private static final int CHUNK_DATA  = 4;
+        private static final int CHUNK_END   = 5;
+        private static final int TRAILERS    = 6;
+        private static final int UNTIL_CLOSE = 7;
+
+        private final ArrayDeque<Exchange> pending = new ArrayDeque<Exchange>();
+        volatile int inFlight;
+        volatile boolean draining;
+
+        private byte[] buf = new byte[BUFFER_SIZE];
+        private int length;
+        private int state;
+        private Response response;
+        private byte[] body;
+        private int bodyBytes;
+        private ByteArrayBuilder chunks;
+        private int chunkRemaining;
+
+        Connection(Socket socket) {
+            super(socket);
+        }
+
+        boolean isOpen() {
+            return !closing && socket.isOpen();
+        }
+
+        // Returns false if the connection is already closed
+        boolean send(Exchange exchange) {
+            synchronized (this) {
+                if (closing || draining) {
+                    return false;
+                }
+                draining = exchange.lastRequest;
+                exchange.deadline = System.currentTimeMillis() + timeout;
+                pending.addLast(exchange);
+                inFlight++;
+                try {
+                    write(exchange.rawRequest, 0, exchange.rawRequest.length);
+                    return true;
+                } catch (IOException e) {
+                    // close() below fails or retries all pending requests including this one
+                }
+            }
+            close();
+            return true;
+        }
+
+        synchronized boolean isTimedOut(long currentTime) {
+            Exchange first = pending.peekFirst();
+            return first != null && currentTime >= first.deadline;
+        }
+
+        // Fails the oldest request with the given error; the rest are retried or failed
+        void abort(Exception error) {
+            close(error);
+        }
+
+        @Override
+        public void close() {
+            close(null);
+        }
+
+        // On abort, the oldest request fails with the error, and whatever part of its response has arrived
+        // is dropped. Otherwise a response delimited by connection close completes the oldest request.
+        // Both happen under the lock together with closing, so the parser cannot pass a response to another request
+        private void close(Exception error) {
+            ArrayDeque<Exchange> unanswered;
+            Exchange first = null;
+            Response lastResponse = null;
+            synchronized (this) {
+                super.close();
+                unanswered = pending.clone();
+                pending.clear();
+                inFlight = 0;
+                if (error != null) {
+                    first = unanswered.pollFirst();
+                } else if (state == UNTIL_CLOSE) {
+                    lastResponse = response;
+                    lastResponse.setBody(chunks.trim());
+                }
+                response = null;
+                state = STATUS_LINE;
+            }
+
+            if (first != null) {
+                first.completeExceptionally(error);
+            } else if (lastResponse != null && !unanswered.isEmpty()) {
+                unanswered.pollFirst().complete(lastResponse);
+            }
+            for (Exchange exchange : unanswered) {
+                if (exchange.isRetriable() && !closed) {
+                    retry(exchange);
+                } else {
+                    exchange.completeExceptionally(new SocketException("Connection closed"));
+                }
+            }
+            if (!closed) {
+                resendWaiting();
+            }
+        }
+
+        // A malformed or oversized response fails its request; other pending requests are retried
+        @Override
+        public void handleException(Throwable e) {
+            if (log.isDebugEnabled()) log.debug("Connection to " + host + ':' + port + " failed", e);
+            close(e instanceof HttpException ? (HttpException) e : null);
+        }
+
+        @Override
+        protected void processRead(byte[] unusedBuffer) throws Exception {
+            if (length == buf.length) {
+                if (state <= HEADERS && length >= MAX_HEADER_SIZE) {
+                    throw new HttpException("Response header too large");
+                }
+                byte[] newBuf = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, newBuf, 0, length);
+                buf = newBuf;
+            }
+
+            int bytesRead = read(buf, length, buf.length - length);
+            if (bytesRead > 0) {
+                length += bytesRead;
+                int pos = parse(0);
+                if (pos > 0) {
+                    System.arraycopy(buf, pos, buf, 0, length -= pos);
+                }
+            }
+        }
+
+        // Consumes complete elements of the response stream; returns the position of unparsed data
+        private int parse(int pos) throws IOException, HttpException {
+            while (!closing) {
+                if (state == BODY) {
+                    int count = Math.min(length - pos, body.length - bodyBytes);
+                    System.arraycopy(buf, pos, body, bodyBytes, count);
+                    pos += count;
+                    if ((bodyBytes += count) < body.length) {
+                        return pos;
+                    }
+                    response.setBody(body);
+                    complete();
+                } else if (state == CHUNK_DATA) {
+                    int count = Math.min(length - pos, chunkRemaining);
+                    checkBodySize((long) chunks.length() + count);
+                    chunks.append(buf, pos, count);
+                    pos += count;
+                    if ((chunkRemaining -= count) > 0) {
+                        return pos;
+                    }
+                    state = CHUNK_END;
+                } else if (state == UNTIL_CLOSE) {
+                    checkBodySize((long) chunks.length() + length - pos);
+                    chunks.append(buf, pos, length - pos);
+                    return length;
+                } else {
+                    int lineEnd = pos;
+                    while (lineEnd < length && buf[lineEnd] != '\n') {
+                        lineEnd++;
+                    }
+                    if (lineEnd == length) {
+                        return pos;
+                    }
+                    int lineLength = lineEnd > pos && buf[lineEnd - 1] == '\r' ? lineEnd - pos - 1 : lineEnd - pos;
+                    String line = Utf8.read(buf, pos, lineLength);
+                    pos = lineEnd + 1;
+                    parseLine(line);
+                }
+            }
+            return length;
+        }
+
+        private void parseLine(String line) throws IOException, HttpException {
+            switch (state) {
+                case STATUS_LINE:
+                    if (line.length() <= 9) {
+                        throw new HttpException("Invalid response header: " + line);
+                    }
+                    response = new Response(line.substring(9));
+                    state = HEADERS;
+                    break;
+                case HEADERS:
+                    if (!line.isEmpty()) {
+                        response.addHeader(line);
+                    } else {
+                        startBody();
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    int extension = line.indexOf(';');
+                    chunkRemaining = checkBodySize(parseLength(extension >= 0 ? line.substring(0, extension) : line, 16));
+                    state = chunkRemaining > 0 ? CHUNK_DATA : TRAILERS;
+                    break;
+                case CHUNK_END:
+                    state = CHUNK_SIZE;
+                    break;
+                case TRAILERS:
+                    if (line.isEmpty()) {
+                        response.setBody(chunks.trim());
+                        complete();
+                    }
+                    break;
+            }
+        }
+
+        private void startBody() throws IOException, HttpException {
+            Exchange first;
+            synchronized (this) {
+                first = pending.peekFirst();
+            }
+            if (first == null) {
+                throw new HttpException("Unexpected response");
+            }
+
+            String contentLength = response.getHeader("Content-Length: ");
+            if (!HttpClient.ResponseReader.hasBody(first.method, response.getStatus())) {
+                complete();
+            } else if (contentLength != null) {
+                body = new byte[checkBodySize(parseLength(contentLength, 10))];
+                bodyBytes = 0;
+                state = BODY;
+                if (body.length == 0) {
+                    response.setBody(body);
+                    complete();
+                }
+            } else if ("chunked".equalsIgnoreCase(response.getHeader("Transfer-Encoding: "))) {
+                chunks = new ByteArrayBuilder();
+                state = CHUNK_SIZE;
+            } else {
+                chunks = new ByteArrayBuilder();
+                state = UNTIL_CLOSE;
+            }
+        }
+
+        private int checkBodySize(long size) throws HttpException {
+            if (size > maxBodySize) {
+                throw new HttpException("Response body too large: " + size);
+            }
+            return (int) size;
+        }
+
+        private long parseLength(String s, int radix) throws HttpException {
+            try {
+                long length = Long.parseLong(s.trim(), radix);
+                if (length >= 0) {
+                    return length;
+                }
+            } catch (NumberFormatException e) {
+                // Fall through
+            }
+            throw new HttpException("Invalid body length: " + s);
+        }
+
+        private void complete() {
+            Response response = this.response;
+            this.response = null;
+            this.body = null;
+            this.chunks = null;
+            this.state = STATUS_LINE;
+
+            Exchange exchange;
+            synchronized (this) {
+                exchange = pending.pollFirst();
+                if (exchange != null) inFlight--;
+            }
+
+            if ("close".equalsIgnoreCase(response.getHeader("Connection: "))) {
+                scheduleClose();
+            } else {
+                sendWaiting(this);
+            }
+            if (exchange != null) {
+                exchange.complete(response);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import one.nio.mem.OutOfMemoryException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+// Serves GET and HEAD requests of a @Cached method from ResponseCache.
+// On a miss the request is passed to the original handler, and the encoded response
+// is stored in the cache when the session writes it.
+public class CachedRequestHandler implements RequestHandler {
+    private static final Logger log = LoggerFactory.getLogger(CachedRequestHandler.class);
+
+    protected final RequestHandler handler;
+    protected final ResponseCache cache;
+    protected final long ttl;
+    protected final String[] vary;
+
+    public CachedRequestHandler(RequestHandler handler, ResponseCache cache, long ttl, String[] vary) {
+        this.handler = handler;
+        this.cache = cache;
+        this.ttl = ttl;
+        this.vary = vary;
+    }
+
+    @Override
+    public void handleRequest(Request request, HttpSession session) throws IOException {
+        int method = request.getMethod();
+        if ((method != Request.METHOD_GET && method != Request.METHOD_HEAD) || !session.isKeepAlive(request)) {
+            handler.handleRequest(request, session);
+            return;
+        }
+
+        final byte[] key = cache.key(request, vary);
+        if (session.writeCachedResponse(request, cache, key)) {
+            return;
+        }
+
+        session.addResponseListener(request, new ResponseListener() {
+            @Override
+            public void onResponse(Request request, Response response, byte[] encoded) {
+                if (response != null && response.getStatus() == 200 && response.getHeader("Set-Cookie: ") == null) {
+                    try {
+                        cache.putResponse(key, encoded, ttl);
+                    } catch (OutOfMemoryException e) {
+                        log.warn("Cannot cache response: " + e.getMessage());
+                    }
+                }
+            }
+        });
+        handler.handleRequest(request, session);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import one.nio.lz4.LZ4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+// Content codings supported by one-nio HTTP server and client.
+// "lz4" is a non-standard coding: 4-byte big-endian length of the original data followed by a raw LZ4 block.
+public final class ContentEncoding {
+    public static final String ENCODING_GZIP = "gzip";
+    public static final String ENCODING_DEFLATE = "deflate";
+    public static final String ENCODING_LZ4 = "lz4";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private ContentEncoding() {
+        // Utility class
+    }
+
+    // Returns true if the given coding is listed in Accept-Encoding header value with non-zero quality.
+    // A coding named explicitly overrides "*". The proprietary lz4 coding must be named explicitly:
+    // "*" covers only standard codings
+    public static boolean isAccepted(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        boolean anyAccepted = false;
+        int length = acceptEncoding.length();
+        for (int start = 0; start < length; ) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end < 0) end = length;
+
+            int tokenEnd = acceptEncoding.indexOf(';', start);
+            if (tokenEnd < 0 || tokenEnd > end) tokenEnd = end;
+
+            String token = acceptEncoding.substring(start, tokenEnd).trim();
+            boolean accepted = tokenEnd == end || !isZeroQuality(acceptEncoding.substring(tokenEnd + 1, end));
+            if (token.equalsIgnoreCase(encoding)) {
+                return accepted;
+            } else if (token.equals("*")) {
+                anyAccepted = accepted;
+            }
+            start = end + 1;
+        }
+        return anyAccepted && !ENCODING_LZ4.equalsIgnoreCase(encoding);
+    }
+
+    private static boolean isZeroQuality(String params) {
+        params = params.trim();
+        if (!params.startsWith("q=")) {
+            return false;
+        }
+        try {
+            return Float.parseFloat(params.substring(2)) == 0.0f;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public static byte[] encode(String encoding, byte[] data) throws IOException {
+        if (ENCODING_LZ4.equalsIgnoreCase(encoding)) {
+            return lz4(data);
+        } else if (ENCODING_GZIP.equalsIgnoreCase(encoding)) {
+            return gzip(data);
+        } else if (ENCODING_DEFLATE.equalsIgnoreCase(encoding)) {
+            return deflate(data);
+        }
+        throw new IOException("Unsupported content encoding: " + encoding);
+    }
+
+    public static byte[] decode(String encoding, byte[] data) throws IOException {
+        if (ENCODING_LZ4.equalsIgnoreCase(encoding)) {
+            return unlz4(data);
+        } else if (ENCODING_GZIP.equalsIgnoreCase(encoding)) {
+            return gunzip(data);
+        } else if (ENCODING_DEFLATE.equalsIgnoreCase(encoding)) {
+            return inflate(data);
+        }
+        throw new IOException("Unsupported content encoding: " + encoding);
+    }
+
+    // Decodes a part of the array. LZ4 and single-member gzip content is decoded straight into
+    // an array of the original size taken from the LZ4 length prefix or the gzip trailer
+    public static byte[] decode(String encoding, byte[] data, int offset, int length, int maxLength) throws IOException {
+        byte[] result;
+        if (ENCODING_LZ4.equalsIgnoreCase(encoding)) {
+            result = unlz4(data, offset, length, maxLength);
+        } else if (ENCODING_GZIP.equalsIgnoreCase(encoding)) {
+            result = gunzip(data, offset, length, maxLength);
+        } else if (ENCODING_DEFLATE.equalsIgnoreCase(encoding)) {
+            result = inflate(Arrays.copyOfRange(data, offset, offset + length), maxLength);
+        } else {
+            result = decode(encoding, Arrays.copyOfRange(data, offset, offset + length));
+        }
+
+        if (result.length > maxLength) {
+            throw new IOException("Decoded content too large: " + result.length);
+        }
+        return result;
+    }
+
+    public static byte[] lz4(byte[] data) {
+        byte[] result = new byte[4 + LZ4.compressBound(data.length)];
+        int length = data.length;
+        result[0] = (byte) (length >>> 24);
+        result[1] = (byte) (length >>> 16);
+        result[2] = (byte) (length >>> 8);
+        result[3] = (byte) length;
+        int compressed = LZ4.compress(data, 0, result, 4, length);
+        return Arrays.copyOf(result, 4 + compressed);
+    }
+
+    public static byte[] unlz4(byte[] data) throws IOException {
+        return unlz4(data, 0, data.length, Integer.MAX_VALUE);
+    }
+
+    private static byte[] unlz4(byte[] data, int offset, int dataLength, int maxLength) throws IOException {
+        if (dataLength < 4) {
+            throw new IOException("Malformed LZ4 content");
+        }
+
+        int length = data[offset] << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+        if (length < 0) {
+            throw new IOException("Malformed LZ4 content");
+        } else if (length > maxLength) {
+            throw new IOException("Decoded content too large: " + length);
+        } else if (length == 0) {
+            return Response.EMPTY;
+        }
+
+        byte[] result = new byte[length];
+        try {
+            if (LZ4.decompress(data, offset + 4, result, 0, dataLength - 4) != length) {
+                throw new IOException("Malformed LZ4 content");
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed LZ4 content", e);
+        }
+        return result;
+    }
+
+    public static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    public static byte[] gunzip(byte[] data) throws IOException {
+        return gunzip(data, Integer.MAX_VALUE);
+    }
+
+    private static byte[] gunzip(byte[] data, int maxLength) throws IOException {
+        GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data), BUFFER_SIZE);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buf = new byte[BUFFER_SIZE];
+            for (int bytes; (bytes = gzip.read(buf)) > 0; ) {
+                if (bytes > maxLength - out.size()) {
+                    throw new IOException("Decoded content too large");
+                }
+                out.write(buf, 0, bytes);
+            }
+            return out.toByteArray();
+        } finally {
+            gzip.close();
+        }
+    }
+
+    private static byte[] gunzip(byte[] data, int offset, int length, int maxLength) throws IOException {
+        int end = offset + length;
+        if (length < 18 || data[offset] != 0x1f || data[offset + 1] != (byte) 0x8b || data[offset + 2] != 8) {
+            throw new IOException("Malformed gzip content");
+        }
+
+        // Skip the optional header fields
+        int flags = data[offset + 3];
+        int pos = offset + 10;
+        try {
+            if ((flags & 4) != 0) pos += 2 + ((data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8);
+            if ((flags & 8) != 0) while (data[pos++] != 0) ;
+            if ((flags & 16) != 0) while (data[pos++] != 0) ;
+            if ((flags & 2) != 0) pos += 2;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed gzip content");
+        }
+        if (pos > end - 8) {
+            throw new IOException("Malformed gzip content");
+        }
+
+        long size = readIntLE(data, end - 4) & 0xffffffffL;
+        if (size > maxLength) {
+            throw new IOException("Decoded content too large: " + size);
+        }
+
+        byte[] result = new byte[(int) size];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        try {
+            inflater.setInput(data, pos, end - 8 - pos);
+            int bytes = 0;
+            while (bytes < result.length && !inflater.finished()) {
+                int n = inflater.inflate(result, bytes, result.length - bytes);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated gzip content");
+                }
+                bytes += n;
+            }
+            if (bytes != result.length || !inflater.finished() && inflater.inflate(new byte[1]) != 0
+                    || !inflater.finished() || inflater.getRemaining() != 0) {
+                // Multiple members, the size is above 4 GB or a forged trailer: fall back to the stream decoder
+                return gunzip(Arrays.copyOfRange(data, offset, end), maxLength);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed gzip content", e);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(result, 0, result.length);
+        if ((int) crc.getValue() != readIntLE(data, end - 8)) {
+            throw new IOException("Corrupt gzip content");
+        }
+        return result;
+    }
+
+    private static int readIntLE(byte[] data, int pos) {
+        return (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8 | (data[pos + 2] & 0xff) << 16 | data[pos + 3] << 24;
+    }
+
+    public static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static byte[] inflate(byte[] data) throws IOException {
+        return inflate(data, Integer.MAX_VALUE);
+    }
+
+    private static byte[] inflate(byte[] data, int maxLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int bytes = inflater.inflate(buf);
+                if (bytes == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflate content");
+                } else if (bytes > maxLength - out.size()) {
+                    throw new IOException("Decoded content too large");
+                }
+                out.write(buf, 0, bytes);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflate content", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// LRU cache of open file descriptors for static content.
+// Files are reference counted, so an evicted file is closed only after all pending transfers complete.
+// Modification time and length are rechecked at most once per checkInterval.
+public class FileCache {
+    protected final int capacity;
+    protected final long checkInterval;
+    protected final LinkedHashMap<String, CachedFile> files;
+
+    public FileCache(int capacity, long checkInterval) {
+        this.capacity = capacity;
+        this.checkInterval = checkInterval;
+        this.files = new LinkedHashMap<String, CachedFile>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedFile> eldest) {
+                if (size() > FileCache.this.capacity) {
+                    eldest.getValue().release();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns an opened regular file with an extra reference, or null if there is no such file.
+    // The caller must release() the returned file.
+    public synchronized CachedFile acquire(File file) throws IOException {
+        String path = file.getPath();
+        long currentTime = System.currentTimeMillis();
+
+        CachedFile cached = files.get(path);
+        if (cached != null) {
+            if (currentTime < cached.checkTime) {
+                cached.refs.incrementAndGet();
+                return cached;
+            }
+            if (file.lastModified() == cached.lastModified && file.length() == cached.length) {
+                cached.checkTime = currentTime + checkInterval;
+                cached.refs.incrementAndGet();
+                return cached;
+            }
+            files.remove(path);
+            cached.release();
+        }
+
+        if (!file.isFile()) {
+            return null;
+        }
+
+        cached = new CachedFile(new RandomAccessFile(file, "r"), file.lastModified(), currentTime + checkInterval);
+        files.put(path, cached);
+        cached.refs.incrementAndGet();
+        return cached;
+    }
+
+    public synchronized void clear() {
+        for (CachedFile cached : files.values()) {
+            cached.release();
+        }
+        files.clear();
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    public static class CachedFile {
+        final RandomAccessFile file;
+        final long length;
+        final long lastModified;
+        final String etag;
+        final AtomicInteger refs = new AtomicInteger(1);
+        long checkTime;
+
+        CachedFile(RandomAccessFile file, long lastModified, long checkTime) throws IOException {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = lastModified;
+            this.etag = '"' + Long.toHexString(lastModified) + '-' + Long.toHexString(length) + '"';
+            this.checkTime = checkTime;
+        }
+
+        public RandomAccessFile file() {
+            return file;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public long lastModified() {
+            return lastModified;
+        }
+
+        public String etag() {
+            return etag;
+        }
+
+        public void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
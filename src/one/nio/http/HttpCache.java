@@ -0,0 +1,298 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import one.nio.util.ByteArrayBuilder;
+import one.nio.util.Utf8;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Off-heap cache of upstream responses for HttpClient and HttpCluster.
+// GET responses are stored according to Cache-Control: max-age and stale-while-revalidate.
+// A stale entry is served while one background request refreshes it; an expired entry with an ETag
+// is revalidated with If-None-Match. One variant per URI is kept: a request that differs
+// in a header listed in Vary is a miss and replaces the entry.
+// Each value is freshUntil, staleUntil, Vary signature and the encoded response.
+public class HttpCache extends ResponseCache {
+    private static final Logger log = LoggerFactory.getLogger(HttpCache.class);
+
+    protected long keepStale = 600000;
+    protected final ConcurrentHashMap<String, Boolean> revalidating = new ConcurrentHashMap<String, Boolean>();
+    protected final ThreadPoolExecutor revalidator;
+
+    public HttpCache(int capacity, long maxMemory) {
+        super(capacity, maxMemory);
+        this.revalidator = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1024),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "HttpCache Revalidator");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        revalidator.allowCoreThreadTimeOut(true);
+        startCleanup();
+    }
+
+    public long getKeepStale() {
+        return keepStale;
+    }
+
+    // How long an expired response with an ETag is kept for conditional requests
+    public void setKeepStale(long keepStale) {
+        this.keepStale = keepStale;
+    }
+
+    public static boolean isCacheable(Request request) {
+        if (request.getMethod() != Request.METHOD_GET) {
+            return false;
+        }
+        String cacheControl = request.getHeader("Cache-Control: ");
+        return cacheControl == null || !cacheControl.contains("no-store");
+    }
+
+    // Request Cache-Control: no-cache or max-age=0 allows a cached response only after revalidation
+    public static boolean requiresRevalidation(Request request) {
+        String cacheControl = request.getHeader("Cache-Control: ");
+        if (cacheControl == null) {
+            String pragma = request.getHeader("Pragma: ");
+            return pragma != null && pragma.contains("no-cache");
+        }
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.equals("no-cache") || directive.startsWith("max-age=") && parseSeconds(directive.substring(8)) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Clients of different hosts may share one cache, so entries are keyed by origin
+    // (the Host header or host:port of the client) as well as by method and URI
+    public Entry lookup(String origin, Request request) {
+        byte[] key = key(origin, request);
+        byte[] value = getResponse(key);
+        if (value == null) {
+            return null;
+        }
+
+        long freshUntil = unsafe.getLong(value, byteArrayOffset);
+        long staleUntil = unsafe.getLong(value, byteArrayOffset + 8);
+        int varyLength = unsafe.getInt(value, byteArrayOffset + 16);
+        String vary = Utf8.read(value, 20, varyLength);
+        Response response = decode(value, 20 + varyLength);
+        if (!vary.equals(varySignature(request, response))) {
+            return null;
+        }
+        return new Entry(key, response, freshUntil, staleUntil);
+    }
+
+    // Returns the same response for convenience
+    public Response store(String origin, Request request, Response response) {
+        if (response.getStatus() != 200) {
+            return response;
+        }
+
+        long maxAge = -1;
+        long staleWhileRevalidate = 0;
+        boolean isPublic = false;
+        String cacheControl = response.getHeader("Cache-Control: ");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store")) {
+                    return response;
+                } else if (directive.equals("public")) {
+                    isPublic = true;
+                } else if (directive.equals("no-cache")) {
+                    maxAge = 0;
+                } else if (directive.startsWith("max-age=") && maxAge != 0) {
+                    maxAge = parseSeconds(directive.substring(8));
+                } else if (directive.startsWith("stale-while-revalidate=")) {
+                    staleWhileRevalidate = parseSeconds(directive.substring(23));
+                }
+            }
+        }
+
+        // A response to an authenticated request may be specific to the user
+        if (!isPublic && request.getHeader("Authorization: ") != null) {
+            return response;
+        }
+
+        boolean hasValidator = response.getHeader("ETag: ") != null;
+        String vary = varySignature(request, response);
+        if (maxAge < 0 && !hasValidator || vary == null) {
+            return response;
+        }
+
+        long freshUntil = System.currentTimeMillis() + Math.max(maxAge, 0);
+        long staleUntil = freshUntil + staleWhileRevalidate;
+        long ttl = staleUntil + (hasValidator ? keepStale : 0) - System.currentTimeMillis();
+        if (ttl > 0) {
+            ByteArrayBuilder builder = new ByteArrayBuilder(256 + (response.getBody() == null ? 0 : response.getBody().length));
+            byte[] varyBytes = Utf8.toBytes(vary);
+            builder.setLength(20);
+            builder.append(varyBytes);
+            response.appendTo(builder, true);
+
+            byte[] value = builder.trim();
+            unsafe.putLong(value, byteArrayOffset, freshUntil);
+            unsafe.putLong(value, byteArrayOffset + 8, staleUntil);
+            unsafe.putInt(value, byteArrayOffset + 16, varyBytes.length);
+            putResponse(key(origin, request), value, ttl);
+        }
+        return response;
+    }
+
+    // Extends the lifetime of a cached response after 304 Not Modified
+    public Response refresh(String origin, Request request, Entry entry, Response notModified) {
+        Response response = entry.response;
+        String cacheControl = notModified.getHeader("Cache-Control: ");
+        if (cacheControl != null) {
+            response = copyWithHeader(response, "Cache-Control: ", cacheControl);
+        }
+        return store(origin, request, response);
+    }
+
+    // Runs the task in background unless the same entry is already being revalidated
+    public void revalidate(Entry entry, final Runnable task) {
+        final String key = Utf8.read(entry.key, 0, entry.key.length);
+        if (revalidating.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+
+        try {
+            revalidator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        revalidating.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidating.remove(key);
+            log.debug("Revalidation queue is full");
+        }
+    }
+
+    @Override
+    protected void closeInternal() {
+        revalidator.shutdownNow();
+        super.closeInternal();
+    }
+
+    private static byte[] key(String origin, Request request) {
+        ByteArrayBuilder builder = new ByteArrayBuilder(origin.length() + request.getURI().length() + 2);
+        builder.append(origin).append('\n').append((byte) request.getMethod()).append(request.getURI());
+        return builder.toBytes();
+    }
+
+    // Values of request headers listed in Vary; null if the response must not be cached
+    private static String varySignature(Request request, Response response) {
+        String vary = response.getHeader("Vary: ");
+        if (vary == null) {
+            return "";
+        } else if (vary.trim().equals("*")) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String name : vary.split(",")) {
+            String value = request.getHeader(name.trim() + ": ");
+            sb.append(value != null ? value : "").append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static Response decode(byte[] value, int offset) {
+        // Skip "HTTP/1.1 "
+        int pos = offset + 9;
+        Response response = null;
+        for (;;) {
+            int lineEnd = pos;
+            while (value[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            if (lineEnd == pos) {
+                break;
+            }
+            String line = Utf8.read(value, pos, lineEnd - pos);
+            if (response == null) {
+                response = new Response(line);
+            } else {
+                response.addHeader(line);
+            }
+            pos = lineEnd + 2;
+        }
+
+        byte[] body = new byte[value.length - pos - 2];
+        System.arraycopy(value, pos + 2, body, 0, body.length);
+        response.setBody(body);
+        return response;
+    }
+
+    private static Response copyWithHeader(Response response, String name, String value) {
+        String[] headers = response.getHeaders();
+        Response result = new Response(headers[0]);
+        for (int i = 1; i < response.getHeaderCount(); i++) {
+            if (!headers[i].regionMatches(true, 0, name, 0, name.length())) {
+                result.addHeader(headers[i]);
+            }
+        }
+        result.addHeader(name + value);
+        result.setBody(response.getBody());
+        return result;
+    }
+
+    private static long parseSeconds(String s) {
+        try {
+            return Long.parseLong(s.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static class Entry {
+        final byte[] key;
+        public final Response response;
+        public final long freshUntil;
+        public final long staleUntil;
+
+        Entry(byte[] key, Response response, long freshUntil, long staleUntil) {
+            this.key = key;
+            this.response = response;
+            this.freshUntil = freshUntil;
+            this.staleUntil = staleUntil;
+        }
+
+        public String getETag() {
+            return response.getHeader("ETag: ");
+        }
+    }
+}
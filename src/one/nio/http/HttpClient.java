@@ -23,20 +23,40 @@ import one.nio.pool.PoolException;
 import one.nio.pool.SocketPool;
 import one.nio.util.Utf8;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
 
 public class HttpClient extends SocketPool {
+    private static final Logger log = LoggerFactory.getLogger(HttpClient.class);
     private static final int BUFFER_SIZE = 8000;
 
     protected String hostHeader;
     protected String connectionHeader;
+    protected int maxBodySize;
+    protected ArrayBlockingQueue<byte[]> buffers;
+    protected volatile HttpCache cache;
+    protected String acceptEncoding;
+    protected int requestCompression;
+    protected String requestEncoding;
 
     public HttpClient(ConnectionString conn) {
         super(conn);
-        this.hostHeader = "Host: " + conn.getHost();
+        // The port is part of the Host header unless it is the default one
+        this.hostHeader = conn.getPort() == 0 ? "Host: " + conn.getHost() : "Host: " + conn.getHost() + ':' + conn.getPort();
         this.connectionHeader = conn.getBooleanParam("keepalive", true) ? "Connection: Keep-Alive" : "Connection: close";
+        this.maxBodySize = conn.getIntParam("maxBodySize", Integer.MAX_VALUE - 8);
+        // Compressed responses are decoded transparently; request bodies above the threshold are encoded
+        this.acceptEncoding = conn.getBooleanParam("compression", false) ? "Accept-Encoding: gzip, lz4" : null;
+        this.requestCompression = conn.getIntParam("requestCompression", 0);
+        this.requestEncoding = conn.getStringParam("requestEncoding", ContentEncoding.ENCODING_GZIP);
+        // Read buffers are recycled; no more than one per pooled connection is retained
+        this.buffers = new ArrayBlockingQueue<byte[]>(Math.max(maxCount, 1));
     }
 
     @Override
@@ -50,37 +70,174 @@ public class HttpClient extends SocketPool {
         }
     }
 
+    public HttpCache getCache() {
+        return cache;
+    }
+
+    // The same cache may be shared between clients of the same service
+    public void setCache(HttpCache cache) {
+        this.cache = cache;
+    }
+
     public Response invoke(Request request) throws InterruptedException, PoolException, IOException, HttpException {
-        int method = request.getMethod();
-        byte[] rawRequest = request.toBytes();
-        ResponseReader responseReader;
+        HttpCache cache = this.cache;
+        if (cache == null || !HttpCache.isCacheable(request)) {
+            return invokeDirect(request);
+        }
+
+        String origin = cacheOrigin(request);
+        HttpCache.Entry entry = cache.lookup(origin, request);
+        if (entry == null) {
+            return cache.store(origin, request, invokeDirect(request));
+        } else if (HttpCache.requiresRevalidation(request)) {
+            return revalidate(cache, origin, request, entry);
+        }
+
+        long currentTime = System.currentTimeMillis();
+        if (currentTime < entry.freshUntil) {
+            return entry.response;
+        } else if (currentTime < entry.staleUntil) {
+            revalidateInBackground(cache, origin, request, entry);
+            return entry.response;
+        }
+        return revalidate(cache, origin, request, entry);
+    }
+
+    private String cacheOrigin(Request request) {
+        String host = request.getHeader("Host: ");
+        return host != null ? host : this.host + ':' + port;
+    }
+
+    private Response revalidate(HttpCache cache, String origin, Request request, HttpCache.Entry entry)
+            throws InterruptedException, PoolException, IOException, HttpException {
+        String etag = entry.getETag();
+        if (etag == null) {
+            return cache.store(origin, request, invokeDirect(request));
+        }
+
+        Request conditional = new Request(request);
+        conditional.addHeader("If-None-Match: " + etag);
+        Response response = invokeDirect(conditional);
+        return response.getStatus() == 304
+                ? cache.refresh(origin, request, entry, response)
+                : cache.store(origin, request, response);
+    }
+
+    private void revalidateInBackground(final HttpCache cache, final String origin, final Request request,
+                                        final HttpCache.Entry entry) {
+        cache.revalidate(entry, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    revalidate(cache, origin, request, entry);
+                } catch (Exception e) {
+                    log.debug("Cannot revalidate " + request.getURI(), e);
+                }
+            }
+        });
+    }
+
+    protected Response invokeDirect(Request request) throws InterruptedException, PoolException, IOException, HttpException {
+        ResponseReader responseReader = sendRequest(prepareRequest(request).toBytes());
 
-        Socket socket = borrowObject();
         boolean keepAlive = false;
         try {
+            responseReader.readBody(request.getMethod(), acceptEncoding != null);
+            Response response = responseReader.response;
+            keepAlive = !"close".equalsIgnoreCase(response.getHeader("Connection: "));
+            return response;
+        } finally {
+            release(responseReader, keepAlive);
+        }
+    }
+
+    // Adds Accept-Encoding and compresses a large body if enabled; the original request is not modified
+    protected Request prepareRequest(Request request) throws IOException {
+        boolean addAcceptEncoding = acceptEncoding != null && request.getHeader("Accept-Encoding: ") == null;
+        byte[] body = request.getBody();
+        boolean compressBody = requestCompression > 0 && body != null && body.length >= requestCompression
+                && request.getHeader("Content-Encoding: ") == null;
+        if (!addAcceptEncoding && !compressBody) {
+            return request;
+        }
+
+        Request result = new Request(request.getMethod(), request.getURI(), request.isHttp11());
+        String[] headers = request.getHeaders();
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            if (!compressBody || !headers[i].regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                result.addHeader(headers[i]);
+            }
+        }
+        if (addAcceptEncoding) {
+            result.addHeader(acceptEncoding);
+        }
+
+        if (compressBody) {
+            byte[] compressed = ContentEncoding.encode(requestEncoding, body);
+            result.addHeader("Content-Length: " + compressed.length);
+            result.addHeader("Content-Encoding: " + requestEncoding);
+            result.setBody(compressed);
+        } else {
+            result.setBody(body);
+        }
+        return result;
+    }
+
+    // Returns as soon as the response headers are received. The caller must close the stream
+    public ResponseStream stream(Request request) throws InterruptedException, PoolException, IOException, HttpException {
+        ResponseReader responseReader = sendRequest(request.toBytes());
+        try {
+            return new ResponseStream(responseReader, request.getMethod());
+        } catch (HttpException e) {
+            release(responseReader, false);
+            throw e;
+        }
+    }
+
+    // Sends the raw request over a pooled connection and reads the response headers.
+    // The caller is responsible for reading the body and releasing the connection.
+    ResponseReader sendRequest(byte[] rawRequest) throws InterruptedException, PoolException, IOException, HttpException {
+        Socket socket = borrowObject();
+        byte[] buf = buffers.poll();
+        if (buf == null) {
+            buf = new byte[BUFFER_SIZE];
+        }
+
+        boolean sent = false;
+        try {
+            ResponseReader responseReader;
             try {
                 socket.writeFully(rawRequest, 0, rawRequest.length);
-                responseReader = new ResponseReader(socket, BUFFER_SIZE);
+                responseReader = new ResponseReader(socket, buf, maxBodySize);
             } catch (SocketException e) {
                 // Stale connection? Retry on a fresh socket
                 destroyObject(socket);
                 socket = createObject();
                 socket.writeFully(rawRequest, 0, rawRequest.length);
-                responseReader = new ResponseReader(socket, BUFFER_SIZE);
+                responseReader = new ResponseReader(socket, buf, maxBodySize);
             }
 
-            Response response = responseReader.readResponse(method);
-            keepAlive = !"close".equalsIgnoreCase(response.getHeader("Connection: "));
-            return response;
+            responseReader.readResponseHeaders();
+            sent = true;
+            return responseReader;
         } finally {
-            if (keepAlive) {
-                returnObject(socket);
-            } else {
+            if (!sent) {
                 invalidateObject(socket);
+                buffers.offer(buf);
             }
         }
     }
 
+    // Gives the connection back to the pool or closes it, and recycles the read buffer
+    void release(ResponseReader responseReader, boolean keepAlive) {
+        if (keepAlive) {
+            returnObject(responseReader.socket);
+        } else {
+            invalidateObject(responseReader.socket);
+        }
+        buffers.offer(responseReader.buf);
+    }
+
     public Response get(String uri, String... headers)
             throws InterruptedException, PoolException, IOException, HttpException {
         return invoke(createRequest(Request.METHOD_GET, uri, headers));
@@ -107,18 +264,24 @@ public class HttpClient extends SocketPool {
     }
 
     static class ResponseReader {
+        private static final int MAX_ENCODED_BUFFER = 1024 * 1024;
+        private static final ThreadLocal<byte[]> ENCODED_BUFFER = new ThreadLocal<byte[]>();
+
         Socket socket;
         byte[] buf;
         int length;
         int pos;
+        int maxBodySize;
+        Response response;
 
-        ResponseReader(Socket socket, int bufferSize) throws IOException {
+        ResponseReader(Socket socket, byte[] buf, int maxBodySize) throws IOException {
             this.socket = socket;
-            this.buf = new byte[bufferSize];
-            this.length = socket.read(buf, 0, bufferSize);
+            this.buf = buf;
+            this.length = socket.read(buf, 0, buf.length);
+            this.maxBodySize = maxBodySize;
         }
 
-        Response readResponse(int method) throws IOException, HttpException {
+        Response readResponseHeaders() throws IOException, HttpException {
             String responseHeader = readLine();
             if (responseHeader.length() <= 9) {
                 throw new HttpException("Invalid response header: " + responseHeader);
@@ -128,25 +291,80 @@ public class HttpClient extends SocketPool {
             for (String header; !(header = readLine()).isEmpty(); ) {
                 response.addHeader(header);
             }
+            return this.response = response;
+        }
+
+        void readBody(int method) throws IOException, HttpException {
+            readBody(method, false);
+        }
 
-            if (method != Request.METHOD_HEAD && response.getStatus() != 204) {
+        // With decode = true, a body with Content-Encoding is replaced with the decoded one.
+        // Content-Length body is first read into a reusable thread-local buffer and decoded from there
+        void readBody(int method, boolean decode) throws IOException, HttpException {
+            Response response = this.response;
+            if (hasBody(method, response.getStatus())) {
                 String contentLength = response.getHeader("Content-Length: ");
+                String encoding = decode ? response.getHeader("Content-Encoding: ") : null;
                 if (contentLength != null) {
-                    byte[] body = new byte[Integer.parseInt(contentLength)];
-                    int contentBytes = length - pos;
-                    System.arraycopy(buf, pos, body, 0, contentBytes);
-                    if (contentBytes < body.length) {
-                        socket.readFully(body, contentBytes, body.length - contentBytes);
+                    int length = checkBodySize(Long.parseLong(contentLength));
+                    if (encoding != null) {
+                        byte[] encoded = encodedBuffer(length);
+                        readFully(encoded, 0, length);
+                        setDecodedBody(encoding, encoded, length);
+                    } else {
+                        byte[] body = new byte[length];
+                        readFully(body, 0, length);
+                        response.setBody(body);
                     }
-                    response.setBody(body);
                 } else if ("chunked".equalsIgnoreCase(response.getHeader("Transfer-Encoding: "))) {
-                    response.setBody(readChunkedBody());
+                    byte[] body = readChunkedBody();
+                    if (encoding != null) {
+                        setDecodedBody(encoding, body, body.length);
+                    } else {
+                        response.setBody(body);
+                    }
                 } else {
                     throw new HttpException("Content-Length unspecified");
                 }
             }
+        }
 
-            return response;
+        private void setDecodedBody(String encoding, byte[] encoded, int length) throws IOException {
+            byte[] body = ContentEncoding.decode(encoding, encoded, 0, length, maxBodySize);
+
+            String[] headers = response.getHeaders();
+            Response result = new Response(headers[0], body);
+            for (int i = 1; i < response.getHeaderCount(); i++) {
+                String header = headers[i];
+                if (!header.regionMatches(true, 0, "Content-Length:", 0, 15)
+                        && !header.regionMatches(true, 0, "Content-Encoding:", 0, 17)
+                        && !header.regionMatches(true, 0, "Transfer-Encoding:", 0, 18)) {
+                    result.addHeader(header);
+                }
+            }
+            this.response = result;
+        }
+
+        private static byte[] encodedBuffer(int length) {
+            if (length > MAX_ENCODED_BUFFER) {
+                return new byte[length];
+            }
+            byte[] buffer = ENCODED_BUFFER.get();
+            if (buffer == null || buffer.length < length) {
+                ENCODED_BUFFER.set(buffer = new byte[Math.max(length, BUFFER_SIZE)]);
+            }
+            return buffer;
+        }
+
+        static boolean hasBody(int method, int status) {
+            return method != Request.METHOD_HEAD && status != 204 && status != 304;
+        }
+
+        int checkBodySize(long size) throws HttpException {
+            if (size > maxBodySize) {
+                throw new HttpException("Response body too large: " + size);
+            }
+            return (int) size;
         }
 
         String readLine() throws IOException, HttpException {
@@ -156,10 +374,16 @@ public class HttpClient extends SocketPool {
 
             do {
                 if (pos == length) {
-                    if (pos >= buf.length) {
-                        throw new HttpException("Line too long");
+                    if (length == buf.length) {
+                        if (lineStart == 0) {
+                            throw new HttpException("Line too long");
+                        }
+                        // Move the beginning of the line to the start of the buffer
+                        System.arraycopy(buf, lineStart, buf, 0, length -= lineStart);
+                        pos -= lineStart;
+                        lineStart = 0;
                     }
-                    length += socket.read(buf, pos, buf.length - pos);
+                    length += socket.read(buf, length, buf.length - length);
                 }
             } while (buf[pos++] != '\n');
 
@@ -167,46 +391,133 @@ public class HttpClient extends SocketPool {
             return Utf8.read(buf, lineStart, pos - lineStart - 2);
         }
 
+        // Takes buffered bytes first; then reads the socket directly into the destination array
+        int read(byte[] b, int offset, int count) throws IOException {
+            int buffered = length - pos;
+            if (buffered > 0) {
+                int bytes = Math.min(buffered, count);
+                System.arraycopy(buf, pos, b, offset, bytes);
+                pos += bytes;
+                return bytes;
+            }
+            pos = length = 0;
+            return socket.read(b, offset, count);
+        }
+
+        void readFully(byte[] b, int offset, int count) throws IOException {
+            int bytes = read(b, offset, count);
+            if (bytes < count) {
+                socket.readFully(b, offset + bytes, count - bytes);
+            }
+        }
+
+        int readChunkSize() throws IOException, HttpException {
+            String line = readLine();
+            int extension = line.indexOf(';');
+            int chunkSize = Integer.parseInt(extension >= 0 ? line.substring(0, extension).trim() : line, 16);
+            if (chunkSize == 0) {
+                // Skip trailers
+                while (!readLine().isEmpty()) ;
+            }
+            return chunkSize;
+        }
+
+        // Chunks are read straight into one growing array
         byte[] readChunkedBody() throws IOException, HttpException {
-            ArrayList<byte[]> chunks = new ArrayList<byte[]>(4);
+            byte[] body = new byte[buf.length];
             int totalBytes = 0;
 
-            for (;;) {
-                int chunkSize = Integer.parseInt(readLine(), 16);
-                if (chunkSize == 0) {
-                    readLine();
-                    break;
+            for (int chunkSize; (chunkSize = readChunkSize()) != 0; ) {
+                int newSize = checkBodySize((long) totalBytes + chunkSize);
+                if (newSize > body.length) {
+                    body = Arrays.copyOf(body, (int) Math.min(Math.max(newSize, body.length * 2L), maxBodySize));
                 }
+                readFully(body, totalBytes, chunkSize);
+                totalBytes = newSize;
+                readLine();
+            }
 
-                byte[] chunk = new byte[chunkSize];
-                chunks.add(chunk);
-                totalBytes += chunkSize;
+            return totalBytes == body.length ? body : Arrays.copyOf(body, totalBytes);
+        }
+    }
 
-                int contentBytes = length - pos;
-                if (contentBytes < chunkSize) {
-                    System.arraycopy(buf, pos, chunk, 0, contentBytes);
-                    socket.readFully(chunk, contentBytes, chunkSize - contentBytes);
-                    pos = 0;
-                    length = 0;
-                } else {
-                    System.arraycopy(buf, pos, chunk, 0, chunkSize);
-                    pos += chunkSize;
-                    if (pos + 128 >= buf.length) {
-                        System.arraycopy(buf, pos, buf, 0, length -= pos);
-                        pos = 0;
-                    }
+    // Streams the response body without buffering it as a whole.
+    // Closing the stream releases the connection; the connection is reused only if the body has been read to the end.
+    public class ResponseStream extends InputStream {
+        private final ResponseReader responseReader;
+        private final boolean chunked;
+        private long remaining;
+        private boolean eof;
+        private boolean closed;
+
+        ResponseStream(ResponseReader responseReader, int method) throws HttpException {
+            Response response = responseReader.response;
+            this.responseReader = responseReader;
+            this.chunked = "chunked".equalsIgnoreCase(response.getHeader("Transfer-Encoding: "));
+
+            String contentLength = response.getHeader("Content-Length: ");
+            if (!ResponseReader.hasBody(method, response.getStatus())) {
+                this.eof = true;
+            } else if (contentLength != null) {
+                this.remaining = Long.parseLong(contentLength);
+                this.eof = remaining == 0;
+            } else if (!chunked) {
+                throw new HttpException("Content-Length unspecified");
+            }
+        }
+
+        public Response getResponse() {
+            return responseReader.response;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            try {
+                if (remaining == 0 && !eof) {
+                    eof = !chunked || (remaining = responseReader.readChunkSize()) == 0;
+                }
+                if (eof) {
+                    return -1;
                 }
 
-                readLine();
+                int bytes = responseReader.read(b, off, (int) Math.min(len, remaining));
+                if ((remaining -= bytes) == 0) {
+                    if (chunked) {
+                        responseReader.readLine();
+                    } else {
+                        eof = true;
+                    }
+                }
+                return bytes;
+            } catch (HttpException e) {
+                throw new IOException(e);
             }
+        }
+
+        @Override
+        public int available() {
+            return eof || closed ? 0 : (int) Math.min(responseReader.length - responseReader.pos, remaining);
+        }
 
-            byte[] result = new byte[totalBytes];
-            int position = 0;
-            for (byte[] chunk : chunks) {
-                System.arraycopy(chunk, 0, result, position, chunk.length);
-                position += chunk.length;
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(responseReader, eof && !"close".equalsIgnoreCase(getResponse().getHeader("Connection: ")));
             }
-            return result;
         }
     }
 }
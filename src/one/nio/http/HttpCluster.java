@@ -16,20 +16,41 @@
 
 package one.nio.http;
 
+import one.nio.cluster.LatencySampler;
+import one.nio.cluster.ProviderLoad;
+import one.nio.cluster.RetryBudget;
 import one.nio.cluster.ServiceUnavailableException;
 import one.nio.cluster.WeightCluster;
 import one.nio.net.ConnectionString;
 
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class HttpCluster extends WeightCluster<HttpProvider> {
     protected int retries = 3;
     protected int maxFailures = 5;
+    protected RetryBudget retryBudget = new RetryBudget(0.1, 10);
+    protected boolean hedging;
+    protected long minHedgeDelay = 1;
+    protected int maxHedgingThreads = 64;
+    protected final LatencySampler latency = new LatencySampler(0.95);
+    protected ThreadPoolExecutor hedgingExecutor;
+    protected volatile HttpCache cache;
 
     public void setRetries(int retries) {
         this.retries = retries;
@@ -39,6 +60,41 @@ public class HttpCluster extends WeightCluster<HttpProvider> {
         this.maxFailures = maxFailures;
     }
 
+    // Retries and hedged requests beyond the budget are not made at all
+    public void setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    // Lower bound of the hedging delay in milliseconds; the delay is otherwise the observed p95 latency
+    public void setMinHedgeDelay(long minHedgeDelay) {
+        this.minHedgeDelay = minHedgeDelay;
+    }
+
+    // Hedged invocations run attempts in a pool of at most this many threads.
+    // When all of them are busy, requests are made without hedging on the caller's thread
+    public synchronized void setMaxHedgingThreads(int maxHedgingThreads) {
+        this.maxHedgingThreads = maxHedgingThreads;
+        if (hedgingExecutor != null) {
+            hedgingExecutor.setMaximumPoolSize(maxHedgingThreads);
+        }
+    }
+
+    // All providers share one response cache
+    public synchronized void setCache(HttpCache cache) {
+        this.cache = cache;
+        for (HttpProvider provider : providers.keySet()) {
+            provider.getClient().setCache(cache);
+        }
+    }
+
     public void configure(String configuration) throws IOException {
         Map<HttpProvider, Integer> newProviders = createProviders(configuration);
         List<HttpProvider> oldProviders = replaceProviders(newProviders);
@@ -51,6 +107,7 @@ public class HttpCluster extends WeightCluster<HttpProvider> {
         HashMap<HttpProvider, Integer> providers = new HashMap<HttpProvider, Integer>();
         for (StringTokenizer st = new StringTokenizer(configuration); st.hasMoreElements(); ) {
             HttpProvider provider = createProvider(st.nextToken());
+            provider.getClient().setCache(cache);
             int weight = Integer.parseInt(st.nextToken());
             providers.put(provider, weight);
         }
@@ -66,24 +123,177 @@ public class HttpCluster extends WeightCluster<HttpProvider> {
             log.trace(request.toString());
         }
 
-        for (int i = 0; i < retries; i++) {
-            HttpProvider provider = getProvider();
+        retryBudget.deposit();
+        if (hedging && isIdempotent(request.getMethod())) {
             try {
-                Response response = provider.invoke(request);
-                provider.getFailures().set(0);
+                return invokeHedged(request);
+            } catch (RejectedExecutionException e) {
+                log.debug("No free hedging threads, invoking without hedging");
+            }
+        }
+
+        for (int i = 0; i < retries; i++) {
+            if (i > 0 && !retryBudget.tryWithdraw()) {
+                log.debug("Retry budget exhausted");
+                break;
+            }
+            Response response = invoke(getProvider(), request);
+            if (response != null) {
                 return response;
-            } catch (Exception e) {
-                if (provider.getFailures().incrementAndGet() >= maxFailures) {
-                    disableProvider(provider);
-                }
-                if ((e instanceof SocketTimeoutException || e.getCause() instanceof SocketTimeoutException) && !log.isTraceEnabled()) {
-                    log.debug(provider + " timed out");
+            }
+        }
+
+        throw new ServiceUnavailableException("Cluster invocation failed");
+    }
+
+    // Sends a second request to another provider if the first one has not answered within p95 latency.
+    // The first successful response wins; the other attempt is cancelled.
+    // Throws RejectedExecutionException if the first attempt cannot be started for lack of threads
+    protected Response invokeHedged(final Request request) throws ServiceUnavailableException {
+        ExecutorCompletionService<Response> completionService = new ExecutorCompletionService<Response>(hedgingExecutor());
+        ArrayList<Future<Response>> attempts = new ArrayList<Future<Response>>(2);
+        ArrayList<HttpProvider> used = new ArrayList<HttpProvider>(2);
+
+        try {
+            attempts.add(submit(completionService, getProvider(), request, used));
+            long hedgeDelay = getHedgeDelay();
+
+            for (int outstanding = 1; outstanding > 0; ) {
+                Future<Response> completed;
+                if (hedgeDelay >= 0) {
+                    completed = completionService.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+                    if (completed == null) {
+                        hedgeDelay = -1;
+                        HttpProvider provider = getOtherProvider(used);
+                        if (provider != null && retryBudget.tryWithdraw()) {
+                            try {
+                                attempts.add(submit(completionService, provider, request, used));
+                                outstanding++;
+                            } catch (RejectedExecutionException e) {
+                                // Keep waiting for the first attempt
+                            }
+                        }
+                        continue;
+                    }
                 } else {
-                    log.warn(provider + " invocation failed", e);
+                    completed = completionService.take();
+                }
+
+                outstanding--;
+                Response response = completed.get();
+                if (response != null) {
+                    return response;
+                }
+
+                // A failed attempt is replaced as in the regular retry loop
+                if (attempts.size() < retries && retryBudget.tryWithdraw()) {
+                    HttpProvider provider = getOtherProvider(used);
+                    if (provider == null) {
+                        provider = getProvider();
+                    }
+                    try {
+                        attempts.add(submit(completionService, provider, request, used));
+                        outstanding++;
+                    } catch (RejectedExecutionException e) {
+                        // No free thread: retry on the caller's thread
+                        if ((response = invoke(provider, request)) != null) {
+                            return response;
+                        }
+                    }
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("Hedged invocation failed", e.getCause());
+        } finally {
+            // The losing attempt is not interrupted: an interrupt while it waits for a pooled socket
+            // would count as a failure of a provider that was merely slower. It completes, and its response is dropped
+            for (Future<Response> attempt : attempts) {
+                attempt.cancel(false);
+            }
         }
 
         throw new ServiceUnavailableException("Cluster invocation failed");
     }
+
+    private Future<Response> submit(CompletionService<Response> completionService, final HttpProvider provider,
+                                    final Request request, List<HttpProvider> used) {
+        used.add(provider);
+        return completionService.submit(new Callable<Response>() {
+            @Override
+            public Response call() {
+                return invoke(provider, request);
+            }
+        });
+    }
+
+    private HttpProvider getOtherProvider(List<HttpProvider> used) throws ServiceUnavailableException {
+        for (int i = 0; i < 3; i++) {
+            HttpProvider provider = getProvider();
+            if (!used.contains(provider)) {
+                return provider;
+            }
+        }
+        return null;
+    }
+
+    // Returns null if the invocation has failed
+    protected Response invoke(HttpProvider provider, Request request) {
+        ProviderLoad load = getLoad(provider);
+        long startTime = load.requestStarted();
+        boolean success = false;
+        try {
+            Response response = provider.invoke(request);
+            provider.getFailures().set(0);
+            latency.record(System.nanoTime() - startTime);
+            success = true;
+            return response;
+        } catch (Exception e) {
+            if (provider.getFailures().incrementAndGet() >= maxFailures) {
+                disableProvider(provider);
+            }
+            if ((e instanceof SocketTimeoutException || e.getCause() instanceof SocketTimeoutException) && !log.isTraceEnabled()) {
+                log.debug(provider + " timed out");
+            } else {
+                log.warn(provider + " invocation failed", e);
+            }
+            return null;
+        } finally {
+            load.requestCompleted(startTime, success);
+        }
+    }
+
+    // Negative value means no hedging until enough latency samples are collected
+    protected long getHedgeDelay() {
+        long p95 = latency.getValue();
+        return p95 < 0 ? -1 : Math.max(p95, TimeUnit.MILLISECONDS.toNanos(minHedgeDelay));
+    }
+
+    protected static boolean isIdempotent(int method) {
+        return method == Request.METHOD_GET || method == Request.METHOD_HEAD || method == Request.METHOD_OPTIONS;
+    }
+
+    private synchronized ThreadPoolExecutor hedgingExecutor() {
+        if (hedgingExecutor == null) {
+            hedgingExecutor = new ThreadPoolExecutor(0, maxHedgingThreads, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HttpCluster hedging");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return hedgingExecutor;
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        if (hedgingExecutor != null) {
+            hedgingExecutor.shutdownNow();
+        }
+    }
 }
@@ -44,6 +44,10 @@ public class HttpProvider implements ServiceProvider {
         return response;
     }
 
+    public HttpClient getClient() {
+        return client;
+    }
+
     public String getHost() {
         return host;
     }
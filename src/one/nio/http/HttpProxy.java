@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package one.nio.http;
+
+import one.nio.cluster.ProviderLoad;
+import one.nio.cluster.ServiceUnavailableException;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+import one.nio.net.SplicePipe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+// Reverse proxy handler: forwards requests to an upstream HttpClient or HttpCluster.
+// Large response bodies with Content-Length are relayed upstream socket -> pipe -> client socket
+// with splice(2) and never reach the Java heap. Other responses are buffered as usual.
+public class HttpProxy implements RequestHandler, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(HttpProxy.class);
+
+    private static final String[] HOP_BY_HOP_HEADERS = {
+            "Connection:", "Keep-Alive:", "Proxy-", "TE:", "Trailer:", "Transfer-Encoding:", "Upgrade:"
+    };
+
+    private static final int MAX_IDLE_PIPES = 64;
+    private static final long SPLICE_WRITE_TIMEOUT = 60000;
+
+    protected final HttpClient client;
+    protected final HttpCluster cluster;
+    protected final ArrayBlockingQueue<SplicePipe> idlePipes = new ArrayBlockingQueue<SplicePipe>(MAX_IDLE_PIPES);
+    protected int spliceThreshold = 64 * 1024;
+
+    public HttpProxy(HttpClient client) {
+        this.client = client;
+        this.cluster = null;
+    }
+
+    public HttpProxy(HttpCluster cluster) {
+        this.client = null;
+        this.cluster = cluster;
+    }
+
+    public int getSpliceThreshold() {
+        return spliceThreshold;
+    }
+
+    // Bodies shorter than the threshold are copied through the heap; 0 disables splice
+    public void setSpliceThreshold(int spliceThreshold) {
+        this.spliceThreshold = spliceThreshold;
+    }
+
+    @Override
+    public void handleRequest(final Request request, final HttpSession session) throws IOException {
+        // Upstream I/O is blocking, so it is never done on a selector thread
+        try {
+            session.server.asyncExecute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        proxy(request, session);
+                    } catch (Throwable e) {
+                        session.handleException(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            session.server.incRequestsRejected();
+            session.writeResponse(request, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+        }
+    }
+
+    protected void proxy(Request request, HttpSession session) throws IOException, HttpException {
+        byte[] rawRequest = upstreamRequest(request, session).toBytes();
+        int attempts = cluster == null ? 1 : cluster.retries;
+        String status = Response.BAD_GATEWAY;
+        if (cluster != null) {
+            cluster.retryBudget.deposit();
+        }
+
+        for (int i = 0; i < attempts; i++) {
+            if (i > 0 && !cluster.retryBudget.tryWithdraw()) {
+                break;
+            }
+            HttpProvider provider = null;
+            ProviderLoad load = null;
+            long startTime = 0;
+            HttpClient client = this.client;
+            HttpClient.ResponseReader responseReader;
+
+            try {
+                if (cluster != null) {
+                    provider = cluster.getProvider();
+                    client = provider.getClient();
+                    load = cluster.getLoad(provider);
+                    startTime = load.requestStarted();
+                }
+                // Load is measured until the response headers arrive
+                try {
+                    responseReader = client.sendRequest(rawRequest);
+                } catch (Exception e) {
+                    if (load != null) load.requestCompleted(startTime, false);
+                    throw e;
+                }
+                if (load != null) load.requestCompleted(startTime, true);
+            } catch (ServiceUnavailableException e) {
+                status = Response.SERVICE_UNAVAILABLE;
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                if (provider != null && provider.getFailures().incrementAndGet() >= cluster.maxFailures) {
+                    cluster.disableProvider(provider);
+                }
+                if (e instanceof SocketTimeoutException) {
+                    status = Response.GATEWAY_TIMEOUT;
+                    log.debug("Upstream timed out: " + (provider != null ? provider : client.name()));
+                } else {
+                    status = Response.BAD_GATEWAY;
+                    log.warn("Upstream request failed: " + (provider != null ? provider : client.name()), e);
+                }
+                continue;
+            }
+
+            if (provider != null) {
+                provider.getFailures().set(0);
+            }
+            relay(client, responseReader, request, session);
+            return;
+        }
+
+        session.writeResponse(request, new Response(status, Response.EMPTY));
+    }
+
+    // Once the response has been started, any failure closes the client connection
+    protected void relay(HttpClient client, HttpClient.ResponseReader responseReader,
+                         Request request, HttpSession session) throws IOException, HttpException {
+        Response upstream = responseReader.response;
+        Response response = downstreamResponse(upstream);
+        boolean keepAlive = false;
+
+        try {
+            String contentLength = upstream.getHeader("Content-Length: ");
+            if (!HttpClient.ResponseReader.hasBody(request.getMethod(), upstream.getStatus())) {
+                session.writeResponse(request, response);
+            } else if (contentLength != null && canSplice(responseReader, session, Long.parseLong(contentLength))) {
+                splice(responseReader, Long.parseLong(contentLength), response, session);
+            } else {
+                responseReader.readBody(request.getMethod());
+                byte[] body = upstream.getBody();
+                if (contentLength == null) {
+                    response.addHeader("Content-Length: " + body.length);
+                }
+                response.setBody(body);
+                session.writeResponse(request, response);
+            }
+            keepAlive = !"close".equalsIgnoreCase(upstream.getHeader("Connection: "));
+        } finally {
+            client.release(responseReader, keepAlive);
+        }
+    }
+
+    protected boolean canSplice(HttpClient.ResponseReader responseReader, HttpSession session, long contentLength) {
+        return spliceThreshold > 0
+                && contentLength - (responseReader.length - responseReader.pos) >= spliceThreshold
+                && SplicePipe.isSupported(responseReader.socket)
+                && session.supportsSendFile();
+    }
+
+    protected void splice(HttpClient.ResponseReader responseReader, long contentLength,
+                          Response response, HttpSession session) throws IOException {
+        SplicePipe pipe = idlePipes.poll();
+        if (pipe == null) {
+            pipe = new SplicePipe();
+        }
+
+        boolean drained = false;
+        try {
+            session.startChunkedResponse(response);
+
+            // The beginning of the body may have been read together with the headers
+            int buffered = (int) Math.min(responseReader.length - responseReader.pos, contentLength);
+            if (buffered > 0) {
+                session.writeChunk(responseReader.buf, responseReader.pos, buffered);
+            }
+
+            for (long remaining = contentLength - buffered; remaining > 0; ) {
+                int bytes = pipe.readFrom(responseReader.socket, (int) Math.min(remaining, pipe.getCapacity()));
+                if (bytes == 0) {
+                    throw new SocketTimeoutException("Upstream read timed out");
+                }
+                SpliceQueueItem item = new SpliceQueueItem(pipe, bytes);
+                session.writeChunk(item, bytes);
+                item.await();
+                remaining -= bytes;
+            }
+
+            session.finish();
+            drained = true;
+        } finally {
+            // A pipe with unsent data cannot be reused
+            if (!drained || !idlePipes.offer(pipe)) {
+                pipe.close();
+            }
+        }
+    }
+
+    protected Request upstreamRequest(Request request, HttpSession session) {
+        Request result = new Request(request.getMethod(), request.getURI(), true);
+        String forwardedFor = session.getRemoteHost();
+
+        String[] headers = request.getHeaders();
+        int headerCount = request.getHeaderCount();
+        for (int i = 0; i < headerCount; i++) {
+            String header = headers[i];
+            if (header.regionMatches(true, 0, "X-Forwarded-For:", 0, 16)) {
+                forwardedFor = header.substring(16).trim() + ", " + forwardedFor;
+            } else if (!isHopByHop(header)) {
+                result.addHeader(header);
+            }
+        }
+
+        result.addHeader("Connection: Keep-Alive");
+        if (forwardedFor != null) {
+            result.addHeader("X-Forwarded-For: " + forwardedFor);
+        }
+        result.setBody(request.getBody());
+        return result;
+    }
+
+    protected Response downstreamResponse(Response upstream) {
+        String[] headers = upstream.getHeaders();
+        int headerCount = upstream.getHeaderCount();
+
+        Response result = new Response(headers[0]);
+        for (int i = 1; i < headerCount; i++) {
+            if (!isHopByHop(headers[i])) {
+                result.addHeader(headers[i]);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isHopByHop(String header) {
+        for (String name : HOP_BY_HOP_HEADERS) {
+            if (header.regionMatches(true, 0, name, 0, name.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        for (SplicePipe pipe; (pipe = idlePipes.poll()) != null; ) {
+            pipe.close();
+        }
+    }
+
+    // Moves data from the pipe to the client socket when the session is ready to write.
+    // The producer waits until the item is released before refilling the pipe
+    static class SpliceQueueItem extends Session.QueueItem {
+        private final SplicePipe pipe;
+        private final int count;
+        private int written;
+        private boolean released;
+
+        SpliceQueueItem(SplicePipe pipe, int count) {
+            this.pipe = pipe;
+            this.count = count;
+        }
+
+        @Override
+        public int remaining() {
+            return count - written;
+        }
+
+        @Override
+        public int write(Socket socket) throws IOException {
+            int bytes = pipe.writeTo(socket, count - written);
+            if (bytes > 0) {
+                written += bytes;
+            }
+            return bytes;
+        }
+
+        @Override
+        public synchronized void release() {
+            released = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws IOException {
+            long waitUntil = System.currentTimeMillis() + SPLICE_WRITE_TIMEOUT;
+            while (!released) {
+                long waitTime = waitUntil - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    throw new SocketTimeoutException("Splice write timed out");
+                }
+                try {
+                    wait(waitTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (written < count) {
+                throw new SocketException("Connection closed");
+            }
+        }
+    }
+}
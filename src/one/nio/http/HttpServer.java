@@ -17,21 +17,75 @@
 package one.nio.http;
 
 import one.nio.http.gen.RequestHandlerGenerator;
+import one.nio.mgt.Management;
 import one.nio.net.ConnectionString;
 import one.nio.server.RejectedSessionException;
 import one.nio.server.Server;
+import one.nio.server.WorkerGroup;
 import one.nio.net.Socket;
 
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class HttpServer extends Server {
     protected final HashMap<String, RequestHandler> requestHandlers = new HashMap<String, RequestHandler>();
+    protected ResponseCompressor compressor;
+    protected boolean parallelPipeline;
+    protected boolean recycleRequests;
+    protected RateLimiter rateLimiter;
+    protected ResponseCache responseCache;
+    protected int responseCacheCapacity;
+    protected long responseCacheMemory;
+    protected final ArrayList<StaticFileHandler> staticHandlers = new ArrayList<StaticFileHandler>(1);
+    protected FileCache fileCache;
+    protected AccessLog accessLog;
+    protected final Map<String, RouteStats> routeStats = new ConcurrentHashMap<String, RouteStats>();
+    protected boolean routeStatsEnabled;
+    protected boolean jmx;
 
     public HttpServer(ConnectionString conn, Object... routers) throws IOException {
         super(conn);
+
+        this.parallelPipeline = conn.getBooleanParam("parallelPipeline", false);
+        // Handlers must not keep a reference to the Request after its response is written
+        this.recycleRequests = conn.getBooleanParam("recycleRequests", false);
+
+        int rateLimit = conn.getIntParam("rateLimit", 0);
+        int maxClientConnections = conn.getIntParam("maxClientConnections", 0);
+        if (rateLimit > 0 || maxClientConnections > 0) {
+            this.rateLimiter = new RateLimiter(rateLimit,
+                    conn.getIntParam("rateBurst", rateLimit),
+                    conn.getStringParam("rateLimitHeader"),
+                    conn.getIntParam("rateLimitCapacity", 1024 * 1024),
+                    maxClientConnections);
+        }
+
+        int compression = conn.getIntParam("compression", 0);
+        if (compression > 0) {
+            this.compressor = new ResponseCompressor(compression, conn.getIntParam("compressionCache", 256));
+        }
+
+        this.responseCacheCapacity = conn.getIntParam("responseCache", 64 * 1024);
+        this.responseCacheMemory = conn.getIntParam("responseCacheMemory", 256) * 1024L * 1024L;
+        this.routeStatsEnabled = conn.getBooleanParam("routeStats", true);
+        this.jmx = conn.getBooleanParam("jmx", true);
+
+        String accessLog = conn.getStringParam("accessLog");
+        if (accessLog != null) {
+            this.accessLog = new AccessLog(accessLog,
+                    conn.getIntParam("accessLogSize", 64) * 1024L * 1024L,
+                    conn.getIntParam("accessLogBuffer", 65536),
+                    conn.getLongParam("accessLogRotate", 0));
+        }
+
+        this.fileCache = new FileCache(conn.getIntParam("fileCache", 1024), conn.getIntParam("fileCacheCheck", 1000));
+
         addRequestHandlers(this);
         for (Object router : routers) {
             addRequestHandlers(router);
@@ -40,16 +94,80 @@ public class HttpServer extends Server {
 
     @Override
     public HttpSession createSession(Socket socket) throws RejectedSessionException {
-        return new HttpSession(socket, this);
+        HttpSession session = new HttpSession(socket, this);
+        RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter != null && rateLimiter.isConnectionLimited()) {
+            if (!rateLimiter.tryConnect(session.clientKey())) {
+                throw new RejectedSessionException("Too many connections");
+            }
+            session.connectionCounted = true;
+        }
+        return session;
+    }
+
+    public ResponseCompressor getCompressor() {
+        return compressor;
+    }
+
+    public void setCompressor(ResponseCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (responseCache != null) {
+            responseCache.close();
+        }
+        fileCache.clear();
+        if (accessLog != null) {
+            accessLog.close();
+        }
     }
 
     public void handleRequest(Request request, HttpSession session) throws IOException {
+        RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter != null && rateLimiter.isRateLimited() && !rateLimiter.tryAcquire(request, session)) {
+            incRequestsRejected();
+            session.writeEncodedResponse(request, RateLimiter.TOO_MANY_REQUESTS, true);
+            return;
+        }
+
         RequestHandler requestHandler = requestHandlers.get(request.getPath());
         if (requestHandler != null) {
             requestHandler.handleRequest(request, session);
-        } else {
-            handleDefault(request, session);
+            return;
         }
+
+        String path = request.getPath();
+        for (StaticFileHandler staticHandler : staticHandlers) {
+            if (path.startsWith(staticHandler.getPrefix())) {
+                staticHandler.handleRequest(request, session);
+                return;
+            }
+        }
+
+        handleDefault(request, session);
+    }
+
+    // Serves files from the root directory for all requests starting with the given path prefix
+    // that are not handled by @Path methods
+    public StaticFileHandler addStaticContent(String prefix, File root) {
+        StaticFileHandler staticHandler = new StaticFileHandler(prefix, root, fileCache);
+        staticHandlers.add(staticHandler);
+        return staticHandler;
     }
 
     public void handleDefault(Request request, HttpSession session) throws IOException {
@@ -68,7 +186,22 @@ public class HttpServer extends Server {
             for (Method m : supers.get(i).getMethods()) {
                 Path annotation = m.getAnnotation(Path.class);
                 if (annotation != null) {
-                    RequestHandler requestHandler = generator.generateFor(m, router);
+                    RouteStats stats = routeStatsEnabled ? createRouteStats(annotation.value()) : null;
+                    RequestHandler requestHandler = generator.generateFor(m, router, stats);
+                    WorkerGroup workerGroup = m.getAnnotation(WorkerGroup.class);
+                    if (workerGroup != null) {
+                        requestHandler = new WorkerGroupRequestHandler(this, requestHandler, workerGroup.value());
+                    }
+                    SingleFlight singleFlight = m.getAnnotation(SingleFlight.class);
+                    if (singleFlight != null) {
+                        requestHandler = new SingleFlightRequestHandler(this, requestHandler,
+                                varyHeaders(singleFlight.vary()), singleFlight.timeout());
+                    }
+                    Cached cached = m.getAnnotation(Cached.class);
+                    if (cached != null) {
+                        requestHandler = new CachedRequestHandler(requestHandler, getOrCreateResponseCache(),
+                                cached.ttl(), varyHeaders(cached.vary()));
+                    }
                     for (String path : annotation.value()) {
                         requestHandlers.put(path, requestHandler);
                     }
@@ -76,4 +209,45 @@ public class HttpServer extends Server {
             }
         }
     }
+
+    protected RouteStats createRouteStats(String[] paths) {
+        StringBuilder sb = new StringBuilder();
+        for (String path : paths) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(path);
+        }
+
+        String name = sb.toString();
+        RouteStats stats = new RouteStats(name);
+        routeStats.put(name, stats);
+        if (jmx) {
+            Management.registerMXBean(stats, "one.nio.http:type=Route,port=" + conn.getPort() + ",path=" + ObjectName.quote(name));
+        }
+        return stats;
+    }
+
+    // Statistics of @Path methods keyed by their comma-separated paths
+    public Map<String, RouteStats> getRouteStats() {
+        return routeStats;
+    }
+
+    protected synchronized ResponseCache getOrCreateResponseCache() {
+        if (responseCache == null) {
+            responseCache = new ResponseCache(responseCacheCapacity, responseCacheMemory);
+            responseCache.startCleanup();
+        }
+        return responseCache;
+    }
+
+    // Compressed and plain responses must not be mixed up, so Accept-Encoding is always a part of the key
+    protected String[] varyHeaders(String[] vary) {
+        ArrayList<String> headers = new ArrayList<String>(vary.length + 1);
+        for (String header : vary) {
+            headers.add(header + ": ");
+        }
+        if (compressor != null) {
+            headers.add("Accept-Encoding: ");
+        }
+        return headers.toArray(new String[headers.size()]);
+    }
 }
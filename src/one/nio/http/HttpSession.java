@@ -18,22 +18,65 @@ package one.nio.http;
 
 import one.nio.net.Session;
 import one.nio.net.Socket;
+import one.nio.server.Server;
+import one.nio.util.ByteArrayBuilder;
 import one.nio.util.Utf8;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
 
 public class HttpSession extends Session {
     private static final int MAX_HEADERS = 48;
     private static final int MAX_FRAGMENT_LENGTH = 2048;
     private static final int MAX_PIPELINE_LENGTH = 256;
+    private static final int MAX_DISPATCHED_REQUESTS = 16;
+    private static final int MAX_PENDING_CHUNKS = 16;
+    private static final int MAX_LISTENED_REQUESTS = 32;
+    private static final long CHUNK_WRITE_TIMEOUT = 30000;
+    private static final int MAX_DIRECT_BODY = 32 * 1024;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
 
     protected final HttpServer server;
-    protected final LinkedList<Request> pipeline = new LinkedList<Request>();
+    protected final ArrayDeque<Request> pipeline = new ArrayDeque<Request>(4);
+    protected final ArrayDeque<DispatchedRequest> dispatched = new ArrayDeque<DispatchedRequest>();
     protected final byte[] fragment = new byte[MAX_FRAGMENT_LENGTH];
     protected int fragmentLength;
     protected Request parsing;
     protected Request handling;
+    protected boolean streaming;
+    protected boolean streamingBody;
+    protected boolean streamingKeepAlive;
+    protected boolean streamingChunked;
+    protected int pendingChunks;
+    protected volatile WebSocket webSocket;
+    protected long clientKey;
+    protected boolean connectionCounted;
+    protected ArrayDeque<ListenedRequest> listened;
+    protected byte[] clientAddress;
+    protected Request spareRequest;
+    protected Executor executor;
+
+    // The request answered by writeResponse(Response) while a dispatched handler runs, see bind()
+    private static final ThreadLocal<Binding> boundRequest = new ThreadLocal<Binding>();
+
+    // Responses are encoded here when they can be sent immediately, see writeDirect()
+    private static final ThreadLocal<ByteArrayBuilder> responseBuffer = new ThreadLocal<ByteArrayBuilder>() {
+        @Override
+        protected ByteArrayBuilder initialValue() {
+            return new ByteArrayBuilder(4096);
+        }
+    };
 
     public HttpSession(Socket socket, HttpServer server) {
         super(socket);
@@ -42,6 +85,11 @@ public class HttpSession extends Session {
 
     @Override
     public int checkStatus(long currentTime, long keepAlive) {
+        WebSocket webSocket = this.webSocket;
+        if (webSocket != null) {
+            return webSocket.checkStatus(currentTime, keepAlive);
+        }
+
         long lastAccessTime = this.lastAccessTime;
         if (lastAccessTime < currentTime - keepAlive) {
             if (queueHead == null && handling == null) {
@@ -53,8 +101,37 @@ public class HttpSession extends Session {
         return ACTIVE;
     }
 
+    @Override
+    public void close() {
+        super.close();
+
+        if (connectionCounted) {
+            synchronized (this) {
+                if (connectionCounted) {
+                    connectionCounted = false;
+                    server.rateLimiter.disconnect(clientKey);
+                }
+            }
+        }
+
+        WebSocket webSocket = this.webSocket;
+        if (webSocket != null) {
+            webSocket.handleClose(WebSocket.CLOSE_ABNORMAL, "");
+        }
+
+        if (listened != null) {
+            abortResponseListeners();
+        }
+    }
+
     @Override
     protected void processRead(byte[] buffer) throws IOException {
+        WebSocket webSocket = this.webSocket;
+        if (webSocket != null) {
+            webSocket.processRead(buffer);
+            return;
+        }
+
         int length = fragmentLength;
         if (length > 0) {
             System.arraycopy(fragment, 0, buffer, 0, length);
@@ -89,6 +166,9 @@ public class HttpSession extends Session {
 
             if (parsing == null) {
                 parsing = parseRequest(buffer, lineStart, lineLength);
+                if (server.accessLog != null) {
+                    parsing.setStartTime(System.nanoTime());
+                }
             } else if (lineLength > 0) {
                 if (parsing.getHeaderCount() < MAX_HEADERS) {
                     parsing.addHeader(Utf8.read(buffer, lineStart, lineLength));
@@ -98,6 +178,8 @@ public class HttpSession extends Session {
                     return i + 1;
                 } else if (handling == null) {
                     server.handleRequest(handling = parsing, this);
+                } else if (pipeline.isEmpty() && canDispatch(parsing) && dispatch(parsing)) {
+                    // Processed in parallel with the current request
                 } else if (pipeline.size() < MAX_PIPELINE_LENGTH) {
                     pipeline.addLast(parsing);
                 } else {
@@ -114,36 +196,580 @@ public class HttpSession extends Session {
     protected Request parseRequest(byte[] buffer, int start, int length) throws HttpException {
         boolean http11 = length > 13 && buffer[start + length - 1] == '1';
         if (length > 13 && Utf8.startsWith(Request.VERB_GET, buffer, start)) {
-            return new Request(Request.METHOD_GET, Utf8.read(buffer, start + 4, length - 13), http11);
+            return newRequest(Request.METHOD_GET, Utf8.read(buffer, start + 4, length - 13), http11);
         } else if (length > 14 && Utf8.startsWith(Request.VERB_POST, buffer, start)) {
-            return new Request(Request.METHOD_POST, Utf8.read(buffer, start + 5, length - 14), http11);
+            return newRequest(Request.METHOD_POST, Utf8.read(buffer, start + 5, length - 14), http11);
         } else if (length > 14 && Utf8.startsWith(Request.VERB_HEAD, buffer, start)) {
-            return new Request(Request.METHOD_HEAD, Utf8.read(buffer, start + 5, length - 14), http11);
+            return newRequest(Request.METHOD_HEAD, Utf8.read(buffer, start + 5, length - 14), http11);
         } else if (length > 17 && Utf8.startsWith(Request.VERB_OPTIONS, buffer, start)) {
-            return new Request(Request.METHOD_OPTIONS, Utf8.read(buffer, start + 8, length - 17), http11);
+            return newRequest(Request.METHOD_OPTIONS, Utf8.read(buffer, start + 8, length - 17), http11);
         }
         throw new HttpException("Invalid request");
     }
 
-    public synchronized void writeResponse(Response response) throws IOException {
-        if (handling == null) {
+    protected Request newRequest(int method, String uri, boolean http11) {
+        Request request = spareRequest;
+        if (request == null) {
+            return new Request(method, uri, http11);
+        }
+        spareRequest = null;
+        request.reset(method, uri, http11);
+        return request;
+    }
+
+    // Answers the request whose handler is running on the current thread,
+    // or the head of the pipeline if the handler was not dispatched
+    public void writeResponse(Response response) throws IOException {
+        Request request = currentRequest();
+        if (request == null) {
             throw new IOException("Out of order response");
         }
+        sendResponse(request, response);
+    }
+
+    private Request currentRequest() {
+        Request request = boundRequest();
+        return request != null ? request : handling;
+    }
+
+    // Binds the request to the current thread for writeResponse(Response); returns the previous binding
+    // to be restored with unbind(). Used when a handler runs outside the head-of-line processing
+    Object bind(Request request) {
+        Binding previous = boundRequest.get();
+        boundRequest.set(new Binding(this, request));
+        return previous;
+    }
+
+    static void unbind(Object previous) {
+        if (previous == null) {
+            boundRequest.remove();
+        } else {
+            boundRequest.set((Binding) previous);
+        }
+    }
+
+    private Request boundRequest() {
+        Binding binding = boundRequest.get();
+        return binding != null && binding.session == this ? binding.request : null;
+    }
 
+    // Writes the response to the given request. Unlike writeResponse(Response), it can be called
+    // for any of the requests being processed in parallel: responses that arrive ahead of their turn
+    // are buffered and sent in the original request order.
+    // The current request is still answered through writeResponse(Response), so subclasses
+    // overriding it see the responses of router-generated handlers as well.
+    public void writeResponse(Request request, Response response) throws IOException {
+        if (request == currentRequest()) {
+            writeResponse(response);
+        } else {
+            sendResponse(request, response);
+        }
+    }
+
+    // The common path of both writeResponse() overloads; override it to alter every response
+    protected void sendResponse(Request request, Response response) throws IOException {
         server.incRequestsProcessed();
 
-        String connection = handling.getHeader("Connection: ");
-        boolean keepAlive = handling.isHttp11()
-                ? !"close".equalsIgnoreCase(connection)
-                : "Keep-Alive".equalsIgnoreCase(connection);
+        boolean keepAlive = isKeepAlive(request);
+        boolean includeBody = request.getMethod() != Request.METHOD_HEAD;
+        response = prepareResponse(request, response, keepAlive);
+        ResponseListener listener = listened == null ? null : removeResponseListener(request);
+        if (listener == null && writeDirect(request, response, includeBody, keepAlive)) {
+            return;
+        }
+
+        byte[] bytes = response.toBytes(includeBody);
+        try {
+            writeEncodedResponse(request, bytes, keepAlive);
+        } finally {
+            if (listener != null) {
+                if (keepAlive) {
+                    listener.onResponse(request, response, bytes);
+                } else {
+                    listener.onResponse(request, null, null);
+                }
+            }
+        }
+    }
+
+    // The listener is notified once the complete response to the given request has been encoded.
+    // If the request finishes otherwise (streaming response, connection close), the listener gets nulls.
+    public synchronized void addResponseListener(Request request, ResponseListener listener) {
+        if (listened == null) {
+            listened = new ArrayDeque<ListenedRequest>(4);
+        } else if (listened.size() >= MAX_LISTENED_REQUESTS) {
+            ListenedRequest oldest = listened.pollFirst();
+            oldest.listener.onResponse(oldest.request, null, null);
+        }
+        listened.addLast(new ListenedRequest(request, listener));
+    }
+
+    private synchronized ResponseListener removeResponseListener(Request request) {
+        if (listened != null) {
+            for (Iterator<ListenedRequest> iterator = listened.iterator(); iterator.hasNext(); ) {
+                ListenedRequest entry = iterator.next();
+                if (entry.request == request) {
+                    iterator.remove();
+                    return entry.listener;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void abortResponseListeners() {
+        ArrayDeque<ListenedRequest> listened;
+        synchronized (this) {
+            listened = this.listened;
+            this.listened = null;
+        }
+
+        if (listened != null) {
+            for (ListenedRequest entry : listened) {
+                entry.listener.onResponse(entry.request, null, null);
+            }
+        }
+    }
+
+    // Sends the response headers followed by the body taken from the given QueueItem,
+    // e.g. a file transferred with sendfile. Content-Length must be set by the caller.
+    public void writeResponse(Request request, Response response, QueueItem body) throws IOException {
+        server.incRequestsProcessed();
+
+        boolean keepAlive = isKeepAlive(request);
         response.addHeader(keepAlive ? "Connection: Keep-Alive" : "Connection: close");
+        byte[] bytes = response.toBytes(false);
+
+        if (request.getMethod() == Request.METHOD_HEAD) {
+            body.release();
+            body = null;
+        }
+        writeEncodedResponse(request, bytes, body, keepAlive);
+    }
+
+    // sendfile is not available for SSL connections
+    public boolean supportsSendFile() {
+        return socket.getSslContext() == null;
+    }
+
+    // Sends a complete response including Connection header
+    protected void writeEncodedResponse(Request request, byte[] bytes, boolean keepAlive) throws IOException {
+        writeEncodedResponse(request, bytes, null, keepAlive);
+    }
+
+    protected synchronized void writeEncodedResponse(Request request, byte[] bytes, QueueItem body, boolean keepAlive) throws IOException {
+        logResponse(request, AccessLog.statusOf(bytes), body == null ? bytes.length : bytes.length + body.remaining(), keepAlive);
+
+        if (request == handling && !streaming) {
+            writeEncoded(bytes, body);
+            completeRequest(keepAlive);
+            return;
+        }
+
+        for (DispatchedRequest dispatchedRequest : dispatched) {
+            if (dispatchedRequest.request == request && dispatchedRequest.response == null) {
+                dispatchedRequest.keepAlive = keepAlive;
+                dispatchedRequest.response = bytes;
+                dispatchedRequest.body = body;
+                return;
+            }
+        }
+
+        if (body != null) {
+            body.release();
+        }
+        throw new IOException("Out of order response");
+    }
+
+    // Sends a response from ResponseCache. If nothing is queued ahead of it, the response is written
+    // straight from off-heap memory. Returns false if the cache has no fresh response for the key
+    protected synchronized boolean writeCachedResponse(Request request, ResponseCache cache, byte[] key) throws IOException {
+        if (request != handling || streaming || closing || queueHead != null || isSsl()) {
+            byte[] response = cache.getResponse(key);
+            if (response == null) {
+                return false;
+            }
+            server.incRequestsProcessed();
+            writeEncodedResponse(request, response, true);
+            return true;
+        }
+
+        ResponseCache.Remainder rest = cache.sendResponse(key, socket);
+        if (rest == null) {
+            return false;
+        }
+        server.incRequestsProcessed();
+        logResponse(request, rest.status, rest.length, true);
+
+        if (rest.remaining() > 0) {
+            super.write(rest);
+        }
+        completeRequest(true);
+        return true;
+    }
+
+    // The common case of a small response to the current request with nothing queued ahead of it:
+    // encode into the thread's buffer and send right away, copying only what the socket did not accept.
+    // With recycleRequests, the request object is then reused for the next request on this connection.
+    // Not used for SSL, where an incomplete write must be retried from the same buffer.
+    private synchronized boolean writeDirect(Request request, Response response,
+                                             boolean includeBody, boolean keepAlive) throws IOException {
+        byte[] body = response.getBody();
+        if (request != handling || streaming || closing || queueHead != null || isSsl()
+                || (includeBody && body != null && body.length > MAX_DIRECT_BODY)) {
+            return false;
+        }
+
+        ByteArrayBuilder builder = responseBuffer.get();
+        builder.setLength(0);
+        response.appendTo(builder, includeBody);
+        byte[] buf = builder.buffer();
+        int length = builder.length();
+        logResponse(request, AccessLog.statusOf(buf), length, keepAlive);
+
+        int written = 0;
+        for (int bytes; written < length && (bytes = socket.write(buf, written, length - written, 0)) > 0; ) {
+            written += bytes;
+        }
+        if (written < length) {
+            byte[] rest = Arrays.copyOfRange(buf, written, length);
+            super.write(rest, 0, rest.length);
+        }
+
+        completeRequest(keepAlive);
+        if (server.recycleRequests) {
+            spareRequest = request;
+        }
+        return true;
+    }
+
+    private void logResponse(Request request, int status, int length, boolean keepAlive) {
+        AccessLog accessLog = server.accessLog;
+        RouteStats routeStats = request.routeStats;
+        if (accessLog != null || routeStats != null) {
+            if (accessLog != null) {
+                accessLog.log(request, clientAddress(), status, length, keepAlive);
+            }
+            if (routeStats != null) {
+                routeStats.complete(request, status, length);
+            }
+        }
+    }
+
+    private void writeEncoded(byte[] bytes, QueueItem body) throws IOException {
+        if (body == null) {
+            super.write(bytes, 0, bytes.length);
+            return;
+        }
+
+        // The body is released by the session once sent, or here if it could not be queued
+        try {
+            super.write(bytes, 0, bytes.length, Socket.MSG_MORE);
+            super.write(body);
+        } catch (IOException e) {
+            body.release();
+            throw e;
+        }
+    }
+
+    private void clearDispatched() {
+        for (DispatchedRequest dispatchedRequest : dispatched) {
+            if (dispatchedRequest.body != null) {
+                dispatchedRequest.body.release();
+            }
+        }
+        dispatched.clear();
+    }
+
+    // Writes the response once the future completes; a failed future results in 500 Internal Server Error
+    public void writeResponse(final Request request, CompletableFuture<Response> future) {
+        future.whenComplete(new BiConsumer<Response, Throwable>() {
+            @Override
+            public void accept(Response response, Throwable e) {
+                try {
+                    if (e == null) {
+                        writeResponse(request, response);
+                    } else {
+                        log.error("Asynchronous handler failed for " + request.getURI(), e);
+                        writeResponse(request, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+                    }
+                } catch (Throwable t) {
+                    handleException(t);
+                }
+            }
+        });
+    }
+
+    protected Response prepareResponse(Request request, Response response, boolean keepAlive) throws IOException {
+        ResponseCompressor compressor = server.compressor;
+        if (compressor != null) {
+            response = compressor.compress(request, response);
+        }
+
+        response.addHeader(keepAlive ? "Connection: Keep-Alive" : "Connection: close");
+        return response;
+    }
+
+    // Starts a response whose body is sent in parts by subsequent writeChunk() calls.
+    // The response occupies the session until finish() is called, so pipelined requests
+    // are still served in order. HTTP/1.0 clients receive the raw body followed by connection close.
+    // If the response already has Content-Length, the parts are sent as a raw body of that length.
+    public synchronized void startChunkedResponse(Response response) throws IOException {
+        Request bound = boundRequest();
+        if (handling == null || streaming || (bound != null && bound != handling)) {
+            throw new IOException("Out of order response");
+        }
+
+        server.incRequestsProcessed();
+
+        boolean hasLength = response.getHeader("Content-Length: ") != null;
+        streamingKeepAlive = (handling.isHttp11() || hasLength) && isKeepAlive(handling);
+        streamingChunked = handling.isHttp11() && !hasLength;
+        streamingBody = handling.getMethod() != Request.METHOD_HEAD;
+        streaming = true;
+
+        ResponseListener listener = listened == null ? null : removeResponseListener(handling);
+        if (listener != null) {
+            listener.onResponse(handling, null, null);
+        }
 
-        byte[] bytes = response.toBytes(handling.getMethod() != Request.METHOD_HEAD);
+        if (streamingChunked) {
+            response.addHeader("Transfer-Encoding: chunked");
+        }
+        response.addHeader(streamingKeepAlive ? "Connection: Keep-Alive" : "Connection: close");
+
+        AccessLog accessLog = server.accessLog;
+        if (accessLog != null) {
+            accessLog.log(handling, clientAddress(), response.getStatus(), -1, streamingKeepAlive);
+        }
+        RouteStats routeStats = handling.routeStats;
+        if (routeStats != null) {
+            routeStats.complete(handling, response.getStatus(), 0);
+        }
+
+        byte[] bytes = response.toBytes(false);
+        super.write(bytes, 0, bytes.length, streamingBody && streamingChunked ? Socket.MSG_MORE : 0);
+    }
+
+    // Completes RFC 6455 handshake for the given request and switches the session to WebSocket protocol.
+    // If the request is not a valid WebSocket handshake, 400 Bad Request is sent and null is returned.
+    public synchronized WebSocket upgradeToWebSocket(Request request, WebSocketHandler handler) throws IOException {
+        if (request != handling || streaming) {
+            throw new IOException("Out of order response");
+        }
+
+        Response response = WebSocket.handshakeResponse(request);
+        if (response.getStatus() != 101) {
+            writeResponse(response);
+            return null;
+        }
+
+        server.incRequestsProcessed();
+
+        WebSocket webSocket = new WebSocket(this, handler);
+        this.webSocket = webSocket;
+        this.handling = null;
+        pipeline.clear();
+        clearDispatched();
+
+        byte[] bytes = response.toBytes(false);
         super.write(bytes, 0, bytes.length);
-        if (!keepAlive) scheduleClose();
+        handler.onOpen(webSocket);
+        return webSocket;
+    }
+
+    // Identifies the client address for per-client limits; computed once per connection
+    protected final byte[] clientAddress() {
+        byte[] clientAddress = this.clientAddress;
+        if (clientAddress == null) {
+            InetSocketAddress address = socket.getRemoteAddress();
+            this.clientAddress = clientAddress = address == null ? new byte[4] : address.getAddress().getAddress();
+        }
+        return clientAddress;
+    }
+
+    public final long clientKey() {
+        long clientKey = this.clientKey;
+        if (clientKey == 0) {
+            this.clientKey = clientKey = RateLimiter.addressKey(socket.getRemoteAddress());
+        }
+        return clientKey;
+    }
+
+    public final WebSocket getWebSocket() {
+        return webSocket;
+    }
+
+    // The array must not be modified until the chunk is written to the socket
+    public synchronized void writeChunk(byte[] data, int offset, int count) throws IOException {
+        if (beginChunk(count)) {
+            super.write(new ChunkQueueItem(data, offset, count));
+            endChunk();
+        }
+    }
+
+    public void writeChunk(byte[] data) throws IOException {
+        writeChunk(data, 0, data.length);
+    }
+
+    // The memory must remain valid until the chunk is written to the socket
+    public synchronized void writeChunk(long address, int count) throws IOException {
+        if (beginChunk(count)) {
+            super.write(new RawChunkQueueItem(address, count));
+            endChunk();
+        }
+    }
+
+    // Sends an arbitrary QueueItem of the given length as the next part of the body,
+    // e.g. data relayed from another socket. The item is released once written or discarded.
+    public synchronized void writeChunk(QueueItem item, int count) throws IOException {
+        if (beginChunk(count)) {
+            super.write(new DelegatingChunkQueueItem(item));
+            endChunk();
+        } else {
+            item.release();
+        }
+    }
+
+    public synchronized void finish() throws IOException {
+        if (!streaming) {
+            throw new IOException("Chunked response not started");
+        }
+
+        streaming = false;
+        if (streamingBody && streamingChunked) {
+            super.write(LAST_CHUNK, 0, LAST_CHUNK.length);
+        }
+        completeRequest(streamingKeepAlive);
+    }
+
+    protected boolean isKeepAlive(Request request) {
+        String connection = request.getHeader("Connection: ");
+        return request.isHttp11()
+                ? !"close".equalsIgnoreCase(connection)
+                : "Keep-Alive".equalsIgnoreCase(connection);
+    }
+
+    protected void completeRequest(boolean keepAlive) throws IOException {
+        for (;;) {
+            if (!keepAlive) {
+                scheduleClose();
+                handling = null;
+                clearDispatched();
+                pipeline.clear();
+                return;
+            }
+
+            DispatchedRequest next = dispatched.pollFirst();
+            if (next == null) {
+                break;
+            }
+
+            handling = next.request;
+            if (next.response == null) {
+                return;  // still being processed
+            }
+            writeEncoded(next.response, next.body);
+            keepAlive = next.keepAlive;
+        }
 
         if ((handling = pipeline.pollFirst()) != null) {
             server.handleRequest(handling, this);
+            while (handling != null && !pipeline.isEmpty() && canDispatch(pipeline.peekFirst())
+                    && dispatch(pipeline.peekFirst())) {
+                pipeline.pollFirst();
+            }
+        }
+    }
+
+    // Parallel processing of pipelined requests is allowed only for idempotent methods
+    // that follow an idempotent request
+    protected boolean canDispatch(Request request) {
+        return server.parallelPipeline && server.getWorkersUsed() && !closing
+                && dispatched.size() < MAX_DISPATCHED_REQUESTS
+                && isIdempotent(handling) && isIdempotent(request);
+    }
+
+    // Returns false if no worker can take the request; it is then processed in turn after the current one
+    protected boolean dispatch(Request request) {
+        dispatched.addLast(new DispatchedRequest(request));
+        try {
+            executor().execute(new AsyncRequest(request));
+            return true;
+        } catch (RejectedExecutionException e) {
+            dispatched.pollLast();
+            return false;
+        }
+    }
+
+    protected final Executor executor() {
+        Executor executor = this.executor;
+        if (executor == null) {
+            this.executor = executor = server.newSessionExecutor();
+        }
+        return executor;
+    }
+
+    private static boolean isIdempotent(Request request) {
+        return request.getMethod() != Request.METHOD_POST;
+    }
+
+    // Returns false if the chunk should be skipped, e.g. for HEAD requests
+    private boolean beginChunk(int count) throws IOException {
+        if (!streaming) {
+            throw new IOException("Chunked response not started");
+        }
+        if (!streamingBody || count == 0) {
+            return false;
+        }
+
+        // Backpressure: do not let the producer run ahead of the socket.
+        // A handler running inline must not wait, since only the selector thread drains the queue
+        long waitUntil = 0;
+        while (pendingChunks >= MAX_PENDING_CHUNKS && !closing && !Server.inSelectorThread()) {
+            long currentTime = System.currentTimeMillis();
+            if (waitUntil == 0) {
+                waitUntil = currentTime + CHUNK_WRITE_TIMEOUT;
+            } else if (currentTime >= waitUntil) {
+                throw new SocketTimeoutException("Chunk write timed out");
+            }
+            try {
+                wait(waitUntil - currentTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (streamingChunked) {
+            byte[] header = chunkHeader(count);
+            super.write(header, 0, header.length, Socket.MSG_MORE);
+        }
+        return true;
+    }
+
+    private void endChunk() throws IOException {
+        if (streamingChunked) {
+            super.write(CRLF, 0, CRLF.length);
+        }
+    }
+
+    private static byte[] chunkHeader(int count) {
+        int digits = (35 - Integer.numberOfLeadingZeros(count)) >>> 2;
+        byte[] header = new byte[digits + 2];
+        for (int i = digits; --i >= 0; count >>>= 4) {
+            int digit = count & 0x0f;
+            header[i] = (byte) (digit < 10 ? digit + '0' : digit + ('a' - 10));
+        }
+        header[digits] = '\r';
+        header[digits + 1] = '\n';
+        return header;
+    }
+
+    // Called under the session lock when a chunk has been written or discarded
+    private void chunkReleased() {
+        if (pendingChunks-- >= MAX_PENDING_CHUNKS) {
+            notifyAll();
         }
     }
 
@@ -156,4 +782,127 @@ public class HttpSession extends Session {
         super.write(bytes, 0, bytes.length);
         scheduleClose();
     }
+
+    protected static class DispatchedRequest {
+        final Request request;
+        byte[] response;
+        QueueItem body;
+        boolean keepAlive;
+
+        DispatchedRequest(Request request) {
+            this.request = request;
+        }
+    }
+
+    private static class Binding {
+        final HttpSession session;
+        final Request request;
+
+        Binding(HttpSession session, Request request) {
+            this.session = session;
+            this.request = request;
+        }
+    }
+
+    protected static class ListenedRequest {
+        final Request request;
+        final ResponseListener listener;
+
+        ListenedRequest(Request request, ResponseListener listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+    }
+
+    private class AsyncRequest implements Runnable {
+        private final Request request;
+
+        AsyncRequest(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            Object previous = bind(request);
+            try {
+                server.handleRequest(request, HttpSession.this);
+            } catch (Throwable e) {
+                handleException(e);
+            } finally {
+                unbind(previous);
+            }
+        }
+    }
+
+    private class ChunkQueueItem extends ArrayQueueItem {
+
+        ChunkQueueItem(byte[] data, int offset, int count) {
+            super(data, offset, count, streamingChunked ? Socket.MSG_MORE : 0);
+            pendingChunks++;
+        }
+
+        @Override
+        public void release() {
+            chunkReleased();
+        }
+    }
+
+    private class RawChunkQueueItem extends QueueItem {
+        private final long address;
+        private final int count;
+        private int written;
+
+        private final int flags;
+
+        RawChunkQueueItem(long address, int count) {
+            this.address = address;
+            this.count = count;
+            this.flags = streamingChunked ? Socket.MSG_MORE : 0;
+            pendingChunks++;
+        }
+
+        @Override
+        public int remaining() {
+            return count - written;
+        }
+
+        @Override
+        public int write(Socket socket) throws IOException {
+            int bytes = socket.writeRaw(address + written, count - written, flags);
+            if (bytes > 0) {
+                written += bytes;
+            }
+            return bytes;
+        }
+
+        @Override
+        public void release() {
+            chunkReleased();
+        }
+    }
+
+    private class DelegatingChunkQueueItem extends QueueItem {
+        private final QueueItem item;
+
+        DelegatingChunkQueueItem(QueueItem item) {
+            this.item = item;
+            pendingChunks++;
+        }
+
+        @Override
+        public int remaining() {
+            return item.remaining();
+        }
+
+        @Override
+        public int write(Socket socket) throws IOException {
+            return item.write(socket);
+        }
+
+        @Override
+        public void release() {
+            item.release();
+            chunkReleased();
+        }
+    }
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import one.nio.mem.LongLongHashMap;
+import one.nio.mem.OutOfMemoryException;
+import one.nio.util.Utf8;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+// Per-client request rate limiting and connection caps.
+// Request rate is controlled by GCRA, a token bucket variant that needs a single long of state per client:
+// the theoretical arrival time of the next request. All state lives off-heap in LongLongHashMap tables,
+// so the limiter does not allocate on the request path regardless of the number of clients.
+public class RateLimiter {
+    static final byte[] TOO_MANY_REQUESTS = Utf8.toBytes(
+            "HTTP/1.1 " + Response.TOO_MANY_REQUESTS + "\r\n" +
+            "Content-Length: 0\r\n" +
+            "Retry-After: 1\r\n" +
+            "Connection: Keep-Alive\r\n" +
+            "\r\n");
+
+    protected final long baseTime = System.nanoTime() - 1;
+    protected final long interval;
+    protected final long burstWindow;
+    protected final String keyHeader;
+    protected final int bucketsCapacity;
+    protected volatile LongLongHashMap buckets;
+
+    protected final int maxConnections;
+    protected final int connectionsCapacity;
+    protected LongLongHashMap connections;
+
+    public RateLimiter(double requestsPerSecond, int burst, String keyHeader, int capacity, int maxConnections) {
+        this.interval = requestsPerSecond > 0 ? (long) (1e9 / requestsPerSecond) : 0;
+        this.burstWindow = interval * Math.max(burst, 1);
+        this.keyHeader = keyHeader == null ? null : keyHeader + ": ";
+        this.bucketsCapacity = capacity;
+        this.buckets = interval > 0 ? new LongLongHashMap(capacity) : null;
+        this.maxConnections = maxConnections;
+        this.connectionsCapacity = Math.max(capacity / 16, 1024);
+        this.connections = maxConnections > 0 ? new LongLongHashMap(connectionsCapacity) : null;
+    }
+
+    public boolean isRateLimited() {
+        return buckets != null;
+    }
+
+    public boolean isConnectionLimited() {
+        return connections != null;
+    }
+
+    // Returns true if the request is allowed.
+    // Requests without the key header are limited per client address, so omitting it does not help
+    public boolean tryAcquire(Request request, HttpSession session) {
+        long key = keyHeader == null ? 0 : headerKey(request, keyHeader);
+        if (key == 0) {
+            key = session.clientKey();
+        }
+        return key == 0 || tryAcquire(key);
+    }
+
+    public boolean tryAcquire(long key) {
+        LongLongHashMap buckets = this.buckets;
+        if (buckets == null) {
+            return true;
+        }
+
+        long now = System.nanoTime() - baseTime;
+        for (;;) {
+            long tat = buckets.get(key);
+            if (tat == 0) {
+                if (buckets.size() > bucketsCapacity / 4 * 3) {
+                    buckets = evict(buckets, now);
+                }
+                try {
+                    if (buckets.putIfAbsent(key, now + interval) == 0) {
+                        return true;
+                    }
+                } catch (OutOfMemoryException e) {
+                    // Hash collisions exceeded probe limit. Let the request pass without tracking it,
+                    // the next eviction will make room
+                    buckets = evict(buckets, now);
+                    return true;
+                }
+                continue;
+            }
+
+            long newTat = Math.max(tat, now) + interval;
+            if (newTat - now > burstWindow) {
+                return false;
+            }
+            if (buckets.replace(key, tat, newTat)) {
+                return true;
+            }
+        }
+    }
+
+    // Rebuild the bucket table dropping expired buckets: a client whose theoretical arrival time
+    // has passed is allowed a full burst anyway, just like an absent one. If active clients still
+    // occupy more than half of the table, those closest to expiry are dropped, too.
+    // Updates racing with the rebuild may be lost, which only lets a client through a bit earlier.
+    private synchronized LongLongHashMap evict(LongLongHashMap buckets, long now) {
+        if (buckets != this.buckets) {
+            return this.buckets;  // already rebuilt by another thread
+        }
+
+        long[] active = new long[buckets.size()];
+        int count = 0;
+        for (int i = 0; i < buckets.capacity() && count < active.length; i++) {
+            long key = buckets.keyAt(i);
+            if (key != LongLongHashMap.EMPTY && key != LongLongHashMap.REMOVED) {
+                long tat = buckets.valueAt(i);
+                if (tat > now) {
+                    active[count++] = tat;
+                }
+            }
+        }
+
+        long minTat = now;
+        int maxCount = bucketsCapacity / 2;
+        if (count > maxCount) {
+            Arrays.sort(active, 0, count);
+            minTat = active[count - maxCount - 1];
+        }
+
+        LongLongHashMap result = new LongLongHashMap(bucketsCapacity);
+        for (int i = 0; i < buckets.capacity(); i++) {
+            long key = buckets.keyAt(i);
+            if (key != LongLongHashMap.EMPTY && key != LongLongHashMap.REMOVED) {
+                long tat = buckets.valueAt(i);
+                if (tat > minTat) {
+                    try {
+                        result.putIfAbsent(key, tat);
+                    } catch (OutOfMemoryException e) {
+                        // Collision chain is full, drop this bucket
+                    }
+                }
+            }
+        }
+        return this.buckets = result;
+    }
+
+    // Returns false if the client has reached the maximum number of concurrent connections
+    public synchronized boolean tryConnect(long key) {
+        LongLongHashMap connections = this.connections;
+        if (connections == null || key == 0) {
+            return true;
+        }
+
+        long count = connections.get(key);
+        if (count >= maxConnections) {
+            return false;
+        }
+
+        if (count == 0 && connections.size() > connectionsCapacity / 4 * 3) {
+            connections = this.connections = compact(connections);
+        }
+        connections.put(key, count + 1);
+        return true;
+    }
+
+    public synchronized void disconnect(long key) {
+        LongLongHashMap connections = this.connections;
+        if (connections != null && key != 0 && connections.get(key) > 0) {
+            connections.adjustOrPut(key, -1);
+        }
+    }
+
+    // Rebuild the table dropping keys of clients with no active connections
+    private LongLongHashMap compact(LongLongHashMap connections) {
+        LongLongHashMap result = new LongLongHashMap(connectionsCapacity);
+        for (int i = 0; i < connections.capacity(); i++) {
+            long key = connections.keyAt(i);
+            if (key != LongLongHashMap.EMPTY && key != LongLongHashMap.REMOVED) {
+                long count = connections.valueAt(i);
+                if (count > 0) {
+                    result.put(key, count);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Non-zero key for the client address: IPv4 addresses are mapped one-to-one, IPv6 addresses are hashed
+    public static long addressKey(InetSocketAddress address) {
+        if (address == null) {
+            return 0;
+        }
+
+        byte[] ip = address.getAddress().getAddress();
+        if (ip.length == 4) {
+            return 1L << 32 | (ip[0] & 0xffL) << 24 | (ip[1] & 0xff) << 16 | (ip[2] & 0xff) << 8 | (ip[3] & 0xff);
+        }
+
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : ip) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return fixKey(hash);
+    }
+
+    // Non-zero hash of the header value computed without extracting the value string
+    public static long headerKey(Request request, String header) {
+        String[] headers = request.getHeaders();
+        int headerLength = header.length();
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            String s = headers[i];
+            if (s.regionMatches(true, 0, header, 0, headerLength)) {
+                long hash = 0xcbf29ce484222325L;
+                for (int j = headerLength; j < s.length(); j++) {
+                    hash = (hash ^ s.charAt(j)) * 0x100000001b3L;
+                }
+                return fixKey(hash);
+            }
+        }
+        return 0;
+    }
+
+    private static long fixKey(long hash) {
+        hash |= 1L << 33;  // never equal to an IPv4 key, EMPTY or REMOVED
+        return hash & Long.MAX_VALUE;
+    }
+}
@@ -56,6 +56,9 @@ public class Request {
     private int headerCount;
     private String[] headers;
     private byte[] body;
+    private long startTime;
+    RouteStats routeStats;
+    long routeStartTime;
 
     public Request(int method, String uri, boolean http11) {
         this.method = method;
@@ -76,6 +79,20 @@ public class Request {
         this.body = prototype.body;
     }
 
+    // Reinitializes a recycled request keeping its header array
+    void reset(int method, String uri, boolean http11) {
+        this.method = method;
+        this.uri = uri;
+        this.http11 = http11;
+        this.params = uri.indexOf('?');
+        Arrays.fill(headers, 0, headerCount, null);
+        this.headerCount = 0;
+        this.body = null;
+        this.startTime = 0;
+        this.routeStats = null;
+        this.routeStartTime = 0;
+    }
+
     public int getMethod() {
         return method;
     }
@@ -197,6 +214,15 @@ public class Request {
         return body;
     }
 
+    // System.nanoTime() when the request was received, or 0 if not tracked
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
     public void setBody(byte[] body) {
         this.body = body;
     }
@@ -57,6 +57,7 @@ public class Response {
     public static final String UNSUPPORTED_MEDIA_TYPE          = "415 Unsupported Media Type";
     public static final String REQUESTED_RANGE_NOT_SATISFIABLE = "416 Requested Range Not Satisfiable";
     public static final String EXPECTATION_FAILED              = "417 Expectation Failed";
+    public static final String TOO_MANY_REQUESTS               = "429 Too Many Requests";
     public static final String INTERNAL_ERROR                  = "500 Internal Server Error";
     public static final String NOT_IMPLEMENTED                 = "501 Not Implemented";
     public static final String BAD_GATEWAY                     = "502 Bad Gateway";
@@ -162,6 +163,12 @@ public class Response {
         }
 
         ByteArrayBuilder builder = new ByteArrayBuilder(estimatedSize);
+        appendTo(builder, includeBody);
+        return builder.buffer();
+    }
+
+    // Encodes the response into a reusable builder
+    public void appendTo(ByteArrayBuilder builder, boolean includeBody) {
         builder.append(HTTP11_HEADER);
         for (int i = 0; i < headerCount; i++) {
             builder.append(headers[i]).append('\r').append('\n');
@@ -170,7 +177,6 @@ public class Response {
         if (includeBody && body != null) {
             builder.append(body);
         }
-        return builder.buffer();
     }
 
     @Override
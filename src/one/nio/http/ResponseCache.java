@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import one.nio.lock.RWLock;
+import one.nio.mem.OffheapBlobMap;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+import one.nio.util.ByteArrayBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Off-heap storage of encoded HTTP responses.
+// Each value is an 8-byte expiration time followed by the complete response bytes ready to be sent.
+public class ResponseCache extends OffheapBlobMap {
+    protected final long maxMemory;
+    protected final AtomicLong usedMemory = new AtomicLong();
+
+    public ResponseCache(int capacity, long maxMemory) {
+        super(capacity);
+        this.maxMemory = maxMemory;
+    }
+
+    public long getUsedMemory() {
+        return usedMemory.get();
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public byte[] key(Request request, String[] vary) {
+        ByteArrayBuilder builder = new ByteArrayBuilder(request.getURI().length() + 16);
+        builder.append((byte) request.getMethod()).append(request.getURI());
+        for (String header : vary) {
+            String value = request.getHeader(header);
+            builder.append('\n');
+            if (value != null) {
+                builder.append(value);
+            }
+        }
+        return builder.toBytes();
+    }
+
+    // Returns the cached response if it has not expired yet
+    public byte[] getResponse(byte[] key) {
+        long hashCode = hashCode(key);
+        long currentPtr = bucketFor(hashCode);
+
+        RWLock lock = lockFor(hashCode).lockRead();
+        try {
+            for (long entry; (entry = unsafe.getAddress(currentPtr)) != 0; currentPtr = entry + NEXT_OFFSET) {
+                if (unsafe.getLong(entry + HASH_OFFSET) == hashCode && equalsAt(entry, key)) {
+                    long value = entry + KEY_OFFSET + key.length;
+                    if (unsafe.getLong(value) < System.currentTimeMillis()) {
+                        return null;
+                    }
+                    byte[] response = new byte[sizeOf(entry) - 8];
+                    unsafe.copyMemory(null, value + 8, response, byteArrayOffset, response.length);
+                    return response;
+                }
+            }
+        } finally {
+            lock.unlockRead();
+        }
+
+        return null;
+    }
+
+    // Writes the cached response to the socket straight from off-heap memory, so that a hit is not copied to heap.
+    // The segment lock keeps the entry alive while it is written; only the part the socket did not accept is copied.
+    // Returns null if there is no fresh response for the key
+    public Remainder sendResponse(byte[] key, Socket socket) throws IOException {
+        long hashCode = hashCode(key);
+        long currentPtr = bucketFor(hashCode);
+
+        RWLock lock = lockFor(hashCode).lockRead();
+        try {
+            for (long entry; (entry = unsafe.getAddress(currentPtr)) != 0; currentPtr = entry + NEXT_OFFSET) {
+                if (unsafe.getLong(entry + HASH_OFFSET) == hashCode && equalsAt(entry, key)) {
+                    long value = entry + KEY_OFFSET + key.length;
+                    if (unsafe.getLong(value) < System.currentTimeMillis()) {
+                        return null;
+                    }
+
+                    long address = value + 8;
+                    int length = sizeOf(entry) - 8;
+                    int written = 0;
+                    for (int bytes; written < length && (bytes = socket.writeRaw(address + written, length - written, 0)) > 0; ) {
+                        written += bytes;
+                    }
+
+                    byte[] rest = new byte[length - written];
+                    unsafe.copyMemory(null, address + written, rest, byteArrayOffset, rest.length);
+                    return new Remainder(rest, statusAt(address, length), length);
+                }
+            }
+        } finally {
+            lock.unlockRead();
+        }
+
+        return null;
+    }
+
+    private static int statusAt(long address, int length) {
+        if (length < 12) {
+            return 0;
+        }
+        return (unsafe.getByte(address + 9) - '0') * 100 + (unsafe.getByte(address + 10) - '0') * 10
+                + (unsafe.getByte(address + 11) - '0');
+    }
+
+    public boolean putResponse(byte[] key, byte[] response, long ttl) {
+        long size = KEY_OFFSET + key.length + 8 + response.length;
+        if (usedMemory.get() + size > maxMemory || getCount() >= capacity) {
+            return false;
+        }
+
+        byte[] value = new byte[8 + response.length];
+        long expirationTime = System.currentTimeMillis() + ttl;
+        unsafe.putLong(value, byteArrayOffset, expirationTime);
+        System.arraycopy(response, 0, value, 8, response.length);
+
+        // Cleanup thread removes entries older than the longest TTL seen
+        if (timeToLive == Long.MAX_VALUE || ttl > timeToLive) {
+            timeToLive = ttl;
+        }
+
+        remove(key);
+        return putIfAbsent(key, value);
+    }
+
+    @Override
+    protected long allocateEntry(byte[] key, long hashCode, int size) {
+        usedMemory.addAndGet(KEY_OFFSET + key.length + size);
+        return super.allocateEntry(key, hashCode, size);
+    }
+
+    @Override
+    protected void destroyEntry(long entry) {
+        int keyLength = (int) (unsafe.getLong(entry + HASH_OFFSET) >>> 32);
+        usedMemory.addAndGet(-(KEY_OFFSET + keyLength + sizeOf(entry)));
+        super.destroyEntry(entry);
+    }
+
+    public synchronized void startCleanup() {
+        if (cleanupThread != null) {
+            return;
+        }
+        BasicCleanup cleanup = new BasicCleanup("ResponseCache Cleanup");
+        cleanup.setDaemon(true);
+        cleanup.start();
+    }
+
+    // The part of a cached response left to be queued after sendResponse()
+    public static class Remainder extends Session.ArrayQueueItem {
+        public final int status;
+        public final int length;
+
+        Remainder(byte[] data, int status, int length) {
+            super(data, 0, data.length, 0);
+            this.status = status;
+            this.length = length;
+        }
+    }
+}
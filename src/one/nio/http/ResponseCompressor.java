@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Negotiates response compression by Accept-Encoding and keeps a small LRU cache
+// of precompressed bodies keyed by URI and ETag. Responses without ETag are compressed every time
+public class ResponseCompressor {
+    protected final int threshold;
+    protected final int cacheSize;
+    protected final LinkedHashMap<CacheKey, byte[]> cache;
+
+    public ResponseCompressor(int threshold, int cacheSize) {
+        this.threshold = threshold;
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<CacheKey, byte[]>(cacheSize * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, byte[]> eldest) {
+                return size() > ResponseCompressor.this.cacheSize;
+            }
+        };
+    }
+
+    public Response compress(Request request, Response response) throws IOException {
+        byte[] body = response.getBody();
+        if (body == null || body.length < threshold || request.getMethod() == Request.METHOD_HEAD) {
+            return response;
+        }
+        if (response.getStatus() != 200 || response.getHeader("Content-Encoding: ") != null) {
+            return response;
+        }
+
+        String encoding = selectEncoding(request.getHeader("Accept-Encoding: "));
+        if (encoding == null) {
+            return response;
+        }
+
+        String etag = response.getHeader("ETag: ");
+        CacheKey key = etag == null ? null : new CacheKey(encoding, request.getURI(), etag);
+
+        byte[] compressed = key == null ? null : getCached(key);
+        if (compressed == null) {
+            compressed = ContentEncoding.encode(encoding, body);
+            if (key != null) {
+                putCached(key, compressed);
+            }
+        }
+
+        if (compressed.length >= body.length) {
+            return response;
+        }
+
+        String[] headers = response.getHeaders();
+        Response result = new Response(headers[0], compressed);
+        for (int i = 1; i < response.getHeaderCount(); i++) {
+            if (!headers[i].regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                result.addHeader(headers[i]);
+            }
+        }
+        result.addHeader("Content-Encoding: " + encoding);
+        result.addHeader("Vary: Accept-Encoding");
+        return result;
+    }
+
+    // lz4 is the cheapest to encode and decode, so it is preferred whenever the client names it
+    // (it is never covered by "*"); otherwise a standard coding is chosen
+    protected String selectEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        } else if (ContentEncoding.isAccepted(acceptEncoding, ContentEncoding.ENCODING_LZ4)) {
+            return ContentEncoding.ENCODING_LZ4;
+        } else if (ContentEncoding.isAccepted(acceptEncoding, ContentEncoding.ENCODING_GZIP)) {
+            return ContentEncoding.ENCODING_GZIP;
+        } else if (ContentEncoding.isAccepted(acceptEncoding, ContentEncoding.ENCODING_DEFLATE)) {
+            return ContentEncoding.ENCODING_DEFLATE;
+        }
+        return null;
+    }
+
+    protected synchronized byte[] getCached(CacheKey key) {
+        return cacheSize > 0 ? cache.get(key) : null;
+    }
+
+    protected synchronized void putCached(CacheKey key, byte[] compressed) {
+        if (cacheSize > 0) {
+            cache.put(key, compressed);
+        }
+    }
+
+    public synchronized void clearCache() {
+        cache.clear();
+    }
+
+    protected static final class CacheKey {
+        final String encoding;
+        final String uri;
+        final String etag;
+
+        CacheKey(String encoding, String uri, String etag) {
+            this.encoding = encoding;
+            this.uri = uri;
+            this.etag = etag;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return encoding.equals(other.encoding) && uri.equals(other.uri) && etag.equals(other.etag);
+        }
+
+        @Override
+        public int hashCode() {
+            return (uri.hashCode() * 31 + etag.hashCode()) * 31 + encoding.hashCode();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+// Receives the encoded response to a particular request, see HttpSession.addResponseListener().
+// May be called while the session lock is held, so implementations must not write to other sessions directly.
+public interface ResponseListener {
+    // response and encoded are null if the request has completed without a reusable response
+    void onResponse(Request request, Response response, byte[] encoded);
+}
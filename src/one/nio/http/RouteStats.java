@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Per-route counters updated by generated request handlers and HttpSession.
+// Latency is measured from the handler invocation till the response is written, so it covers
+// asynchronous handlers as well. The histogram has power-of-two buckets in microseconds:
+// bucket i counts requests with latency in [2^(i-1), 2^i) us; all values are reported as upper bounds.
+public class RouteStats implements RouteStatsMXBean {
+    private static final int BUCKETS = 40;
+
+    private final String path;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    public RouteStats(String path) {
+        this.path = path;
+    }
+
+    // Called by the generated handler before invoking the @Path method
+    public void start(Request request) {
+        request.routeStats = this;
+        request.routeStartTime = System.nanoTime();
+    }
+
+    // Called by the generated handler when the @Path method throws
+    public void failed(Request request) {
+        if (request.routeStats == this) {
+            request.routeStats = null;
+            errors.incrementAndGet();
+            record(System.nanoTime() - request.routeStartTime);
+        }
+    }
+
+    // Called by HttpSession when the response to the request is written
+    public void complete(Request request, int status, int length) {
+        request.routeStats = null;
+        if (status >= 500) {
+            errors.incrementAndGet();
+        }
+        if (length > 0) {
+            bytesSent.addAndGet(length);
+        }
+        record(System.nanoTime() - request.routeStartTime);
+    }
+
+    void record(long nanos) {
+        long micros = nanos / 1000;
+        requests.incrementAndGet();
+        totalLatency.addAndGet(micros);
+        histogram.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1));
+
+        for (long max; micros > (max = maxLatency.get()); ) {
+            if (maxLatency.compareAndSet(max, micros)) break;
+        }
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getAvgLatency() {
+        long requests = this.requests.get();
+        return requests == 0 ? 0 : totalLatency.get() / requests;
+    }
+
+    @Override
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    @Override
+    public long getLatency50() {
+        return percentile(0.5);
+    }
+
+    @Override
+    public long getLatency90() {
+        return percentile(0.9);
+    }
+
+    @Override
+    public long getLatency99() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public long getLatency999() {
+        return percentile(0.999);
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = histogram.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        requests.set(0);
+        errors.set(0);
+        bytesSent.set(0);
+        totalLatency.set(0);
+        maxLatency.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram.set(i, 0);
+        }
+    }
+
+    public long percentile(double p) {
+        long[] buckets = getLatencyHistogram();
+        long total = 0;
+        for (long count : buckets) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(total * p);
+        long accumulated = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if ((accumulated += buckets[i]) >= threshold) {
+                return 1L << i;
+            }
+        }
+        return maxLatency.get();
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+public interface RouteStatsMXBean {
+    String getPath();
+    long getRequests();
+    long getErrors();
+    long getBytesSent();
+    long getAvgLatency();
+    long getMaxLatency();
+    long getLatency50();
+    long getLatency90();
+    long getLatency99();
+    long getLatency999();
+    long[] getLatencyHistogram();
+    void reset();
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
+
+// Runs at most one handler invocation per distinct request at a time.
+// Requests that arrive while an identical one is in flight wait for its response;
+// if the leader completes without a reusable response, or does not complete within the timeout,
+// the followers are handled individually.
+public class SingleFlightRequestHandler implements RequestHandler {
+    private static final Timer timer = new Timer("SingleFlight Timeout", true);
+
+    protected final HttpServer server;
+    protected final RequestHandler handler;
+    protected final String[] vary;
+    protected final long timeout;
+    protected final HashMap<String, Flight> flights = new HashMap<String, Flight>();
+
+    public SingleFlightRequestHandler(HttpServer server, RequestHandler handler, String[] vary, long timeout) {
+        this.server = server;
+        this.handler = handler;
+        this.vary = vary;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void handleRequest(Request request, HttpSession session) throws IOException {
+        int method = request.getMethod();
+        if ((method != Request.METHOD_GET && method != Request.METHOD_HEAD) || !session.isKeepAlive(request)) {
+            handler.handleRequest(request, session);
+            return;
+        }
+
+        String key = key(request);
+        Flight flight;
+        synchronized (flights) {
+            flight = flights.get(key);
+            if (flight != null) {
+                if (flight.followers.isEmpty()) {
+                    timer.schedule(flight.timeoutTask(), timeout);
+                }
+                flight.followers.add(new Follower(request, session));
+                return;
+            }
+            flights.put(key, flight = new Flight(key));
+        }
+
+        session.addResponseListener(request, flight);
+        handler.handleRequest(request, session);
+    }
+
+    protected String key(Request request) {
+        StringBuilder sb = new StringBuilder(request.getURI().length() + 16);
+        sb.append(request.getMethod()).append(' ').append(request.getURI());
+        for (String header : vary) {
+            String value = request.getHeader(header);
+            sb.append('\n');
+            if (value != null) {
+                sb.append(value);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Responses are delivered from a worker thread, because the leader's session may be locked now
+    protected void execute(Runnable task) {
+        try {
+            server.asyncExecute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    protected class Follower implements Runnable {
+        final Request request;
+        final HttpSession session;
+
+        Follower(Request request, HttpSession session) {
+            this.request = request;
+            this.session = session;
+        }
+
+        // Handles the request individually
+        @Override
+        public void run() {
+            try {
+                handler.handleRequest(request, session);
+            } catch (Throwable e) {
+                session.handleException(e);
+            }
+        }
+    }
+
+    // Same rules as for CachedRequestHandler: a response is shared only if it is not specific to the client
+    protected static boolean isShareable(Response response) {
+        return response != null && response.getStatus() == 200 && response.getHeader("Set-Cookie: ") == null;
+    }
+
+    protected class Flight implements ResponseListener, Runnable {
+        final String key;
+        final ArrayList<Follower> followers = new ArrayList<Follower>(2);
+        TimerTask timeoutTask;
+        boolean completed;
+        byte[] encoded;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        TimerTask timeoutTask() {
+            return timeoutTask = new TimerTask() {
+                @Override
+                public void run() {
+                    complete(null);
+                }
+            };
+        }
+
+        @Override
+        public void onResponse(Request request, Response response, byte[] encoded) {
+            complete(isShareable(response) ? encoded : null);
+        }
+
+        // Called once with the leader's response, or with null on timeout, whichever happens first.
+        // New identical requests start another flight after that
+        void complete(byte[] encoded) {
+            synchronized (flights) {
+                if (completed) {
+                    return;
+                }
+                completed = true;
+                if (flights.get(key) == this) {
+                    flights.remove(key);
+                }
+                if (timeoutTask != null) {
+                    timeoutTask.cancel();
+                }
+            }
+
+            if (followers.isEmpty()) {
+                return;
+            }
+
+            if (encoded != null) {
+                this.encoded = encoded;
+                execute(this);
+            } else {
+                for (Follower follower : followers) {
+                    execute(follower);
+                }
+            }
+        }
+
+        // Sends the shared response to all followers
+        @Override
+        public void run() {
+            for (Follower follower : followers) {
+                try {
+                    server.incRequestsProcessed();
+                    follower.session.writeEncodedResponse(follower.request, encoded, true);
+                } catch (Throwable e) {
+                    follower.session.handleException(e);
+                }
+            }
+        }
+    }
+}
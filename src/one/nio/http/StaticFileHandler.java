@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import one.nio.net.Session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+
+// Serves files under the given root directory for request paths starting with prefix.
+// File contents are transferred with sendfile directly from the page cache.
+// Supports single byte ranges (206), conditional requests with ETag and Last-Modified (304) and HEAD.
+public class StaticFileHandler implements RequestHandler {
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static final long[] UNSATISFIABLE = new long[0];
+    private static final int MAX_COPY_SIZE = 16 * 1024 * 1024;
+
+    private static final HashMap<String, String> CONTENT_TYPES = new HashMap<String, String>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("xml", "application/xml");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("zip", "application/zip");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+    }
+
+    protected final String prefix;
+    protected final File root;
+    protected final FileCache fileCache;
+    protected String indexFile = "index.html";
+
+    public StaticFileHandler(String prefix, File root, FileCache fileCache) {
+        this.prefix = prefix;
+        this.root = root;
+        this.fileCache = fileCache;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setIndexFile(String indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    @Override
+    public void handleRequest(Request request, HttpSession session) throws IOException {
+        int method = request.getMethod();
+        if (method != Request.METHOD_GET && method != Request.METHOD_HEAD) {
+            Response response = new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+            response.addHeader("Allow: GET, HEAD");
+            session.writeResponse(request, response);
+            return;
+        }
+
+        File file = resolve(request.getPath());
+        FileCache.CachedFile cached = file == null ? null : fileCache.acquire(file);
+        if (cached == null) {
+            session.writeResponse(request, new Response(Response.NOT_FOUND, Response.EMPTY));
+            return;
+        }
+
+        boolean transferred = false;
+        try {
+            transferred = sendFile(request, session, file, cached);
+        } finally {
+            if (!transferred) {
+                cached.release();
+            }
+        }
+    }
+
+    // Returns true if the ownership of the cached file reference has been passed to the session
+    private boolean sendFile(Request request, HttpSession session, File file, FileCache.CachedFile cached) throws IOException {
+        String lastModified = HTTP_DATE.format(Instant.ofEpochMilli(cached.lastModified));
+
+        if (isNotModified(request, cached)) {
+            Response response = new Response(Response.NOT_MODIFIED, Response.EMPTY);
+            response.addHeader("ETag: " + cached.etag);
+            response.addHeader("Last-Modified: " + lastModified);
+            session.writeResponse(request, response);
+            return false;
+        }
+
+        long length = cached.length;
+        long[] range = null;
+        String rangeHeader = request.getHeader("Range: ");
+        if (rangeHeader != null && isRangeApplicable(request, cached, lastModified)) {
+            range = parseRange(rangeHeader, length);
+        }
+
+        if (range == UNSATISFIABLE) {
+            Response response = new Response(Response.REQUESTED_RANGE_NOT_SATISFIABLE, Response.EMPTY);
+            response.addHeader("Content-Range: bytes */" + length);
+            session.writeResponse(request, response);
+            return false;
+        }
+
+        long offset = range == null ? 0 : range[0];
+        long count = range == null ? length : range[1] - range[0] + 1;
+
+        Response response = new Response(range == null ? Response.OK : Response.PARTIAL_CONTENT);
+        response.addHeader("Content-Length: " + count);
+        response.addHeader("Content-Type: " + contentType(file.getName()));
+        response.addHeader("Last-Modified: " + lastModified);
+        response.addHeader("ETag: " + cached.etag);
+        response.addHeader("Accept-Ranges: bytes");
+        if (range != null) {
+            response.addHeader("Content-Range: bytes " + range[0] + '-' + range[1] + '/' + length);
+        }
+
+        if (!session.supportsSendFile()) {
+            // sendfile cannot be used with SSL; fall back to copying through the heap
+            if (count > MAX_COPY_SIZE) {
+                session.writeResponse(request, new Response(Response.REQUEST_ENTITY_TOO_LARGE, Response.EMPTY));
+                return false;
+            }
+            byte[] body = new byte[(int) count];
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            while (buffer.hasRemaining() && cached.file.getChannel().read(buffer, offset + buffer.position()) > 0) {
+                // Continue reading
+            }
+            session.writeResponse(request, response, new Session.ArrayQueueItem(body, 0, body.length, 0));
+            return false;
+        }
+
+        session.writeResponse(request, response, new FileQueueItem(cached, offset, count));
+        return true;
+    }
+
+    protected File resolve(String path) {
+        if (!path.startsWith(prefix)) {
+            return null;
+        }
+
+        try {
+            // Percent-decoding only: unlike in a query string, '+' in a path is not a space
+            path = URLDecoder.decode(path.substring(prefix.length()).replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        // Do not let requests escape the root directory
+        if (path.indexOf('\0') >= 0 || path.indexOf('\\') >= 0 || path.equals("..")
+                || path.startsWith("../") || path.endsWith("/..") || path.contains("/../")) {
+            return null;
+        }
+
+        File file = new File(root, path);
+        if (file.isDirectory()) {
+            file = new File(file, indexFile);
+        }
+        return file;
+    }
+
+    private static boolean isNotModified(Request request, FileCache.CachedFile cached) {
+        String ifNoneMatch = request.getHeader("If-None-Match: ");
+        if (ifNoneMatch != null) {
+            return matchesETag(ifNoneMatch, cached.etag);
+        }
+
+        String ifModifiedSince = request.getHeader("If-Modified-Since: ");
+        if (ifModifiedSince != null) {
+            long since = parseDate(ifModifiedSince);
+            return since >= 0 && cached.lastModified / 1000 <= since / 1000;
+        }
+
+        return false;
+    }
+
+    // If-Range allows a partial response only when the representation has not changed
+    private static boolean isRangeApplicable(Request request, FileCache.CachedFile cached, String lastModified) {
+        String ifRange = request.getHeader("If-Range: ");
+        return ifRange == null || ifRange.equals(cached.etag) || ifRange.equals(lastModified);
+    }
+
+    private static boolean matchesETag(String header, String etag) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseDate(String date) {
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    // Parses a single "bytes=first-last" or "bytes=-suffix" range.
+    // Returns null if the header should be ignored, UNSATISFIABLE if the range is beyond the end of file
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+
+        int dash = header.indexOf('-', 6);
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String first = header.substring(6, dash).trim();
+            String last = header.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[]{Math.max(0, length - suffix), length - 1};
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            } else if (start >= length) {
+                return UNSATISFIABLE;
+            }
+            return new long[]{start, Math.min(end, length - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static String contentType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        String type = dot < 0 ? null : CONTENT_TYPES.get(fileName.substring(dot + 1).toLowerCase());
+        return type != null ? type : "application/octet-stream";
+    }
+
+    static class FileQueueItem extends Session.FileQueueItem {
+        private final FileCache.CachedFile cached;
+
+        FileQueueItem(FileCache.CachedFile cached, long offset, long count) {
+            super(cached.file, offset, count);
+            this.cached = cached;
+        }
+
+        @Override
+        public void release() {
+            cached.release();
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import one.nio.net.Session;
+import one.nio.util.Base64;
+import one.nio.util.ByteArrayBuilder;
+import one.nio.util.Utf8;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// RFC 6455 WebSocket connection established over an upgraded HttpSession
+public class WebSocket {
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT         = 0x1;
+    public static final int OPCODE_BINARY       = 0x2;
+    public static final int OPCODE_CLOSE        = 0x8;
+    public static final int OPCODE_PING         = 0x9;
+    public static final int OPCODE_PONG         = 0xa;
+
+    public static final int CLOSE_NORMAL           = 1000;
+    public static final int CLOSE_GOING_AWAY       = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR   = 1002;
+    public static final int CLOSE_UNSUPPORTED_DATA = 1003;
+    public static final int CLOSE_NO_STATUS        = 1005;
+    public static final int CLOSE_ABNORMAL         = 1006;
+    public static final int CLOSE_TOO_BIG          = 1009;
+
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] HANDSHAKE_GUID = Utf8.toBytes("258EAFA5-E914-47DA-95CA-C5AB0DC85B11");
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    protected final HttpSession session;
+    protected final WebSocketHandler handler;
+    protected int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    // Unparsed tail of the previous read
+    protected byte[] carry;
+    protected int carryLength;
+
+    // A frame that does not fit in the selector buffer is read directly into its own array
+    protected byte[] payload;
+    protected int payloadRead;
+    protected int payloadHeader;
+    protected int payloadMask;
+
+    // Fragmented message being assembled
+    protected ByteArrayBuilder message;
+    protected int messageOpcode;
+
+    protected boolean pingSent;
+    protected boolean closeSent;
+    protected boolean closed;
+
+    public WebSocket(HttpSession session, WebSocketHandler handler) {
+        this.session = session;
+        this.handler = handler;
+    }
+
+    public final HttpSession getSession() {
+        return session;
+    }
+
+    public final String getRemoteHost() {
+        return session.getRemoteHost();
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public boolean isOpen() {
+        return !closed && !closeSent;
+    }
+
+    public static boolean isUpgradeRequest(Request request) {
+        return "websocket".equalsIgnoreCase(request.getHeader("Upgrade: "))
+                && request.getHeader("Sec-WebSocket-Key: ") != null;
+    }
+
+    public static Response handshakeResponse(Request request) {
+        String key = request.getHeader("Sec-WebSocket-Key: ");
+        if (key == null || !"13".equals(request.getHeader("Sec-WebSocket-Version: "))) {
+            Response response = new Response(Response.BAD_REQUEST, Response.EMPTY);
+            response.addHeader("Sec-WebSocket-Version: 13");
+            return response;
+        }
+
+        Response response = new Response(Response.SWITCHING_PROTOCOLS);
+        response.addHeader("Upgrade: websocket");
+        response.addHeader("Connection: Upgrade");
+        response.addHeader("Sec-WebSocket-Accept: " + acceptKey(key.trim()));
+        return response;
+    }
+
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(Utf8.toBytes(key));
+            sha1.update(HANDSHAKE_GUID);
+            return new String(Base64.encodeToChars(sha1.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Encodes a single unmasked server frame. The result can be shared between many connections.
+    public static byte[] encodeFrame(int opcode, byte[] data, int offset, int length) {
+        int headerLength = length < 126 ? 2 : length < 65536 ? 4 : 10;
+        byte[] frame = new byte[headerLength + length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            frame[1] = (byte) length;
+        } else if (length < 65536) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            frame[6] = (byte) (length >>> 24);
+            frame[7] = (byte) (length >>> 16);
+            frame[8] = (byte) (length >>> 8);
+            frame[9] = (byte) length;
+        }
+        System.arraycopy(data, offset, frame, headerLength, length);
+        return frame;
+    }
+
+    public static byte[] encodeText(String text) {
+        byte[] data = Utf8.toBytes(text);
+        return encodeFrame(OPCODE_TEXT, data, 0, data.length);
+    }
+
+    public static byte[] encodeBinary(byte[] data) {
+        return encodeFrame(OPCODE_BINARY, data, 0, data.length);
+    }
+
+    // Sends the same pre-encoded frame to all given sockets. The frame is serialized only once,
+    // and every session queue refers to the same array. Returns the number of successful sends.
+    public static int broadcast(Iterable<WebSocket> webSockets, byte[] frame) {
+        int sent = 0;
+        for (WebSocket webSocket : webSockets) {
+            if (webSocket.isOpen()) {
+                try {
+                    webSocket.sendFrame(frame);
+                    sent++;
+                } catch (IOException e) {
+                    webSocket.session.close();
+                }
+            }
+        }
+        return sent;
+    }
+
+    public static int broadcastText(Iterable<WebSocket> webSockets, String text) {
+        return broadcast(webSockets, encodeText(text));
+    }
+
+    public static int broadcastBinary(Iterable<WebSocket> webSockets, byte[] data) {
+        return broadcast(webSockets, encodeBinary(data));
+    }
+
+    public void sendText(String text) throws IOException {
+        sendFrame(encodeText(text));
+    }
+
+    public void sendBinary(byte[] data) throws IOException {
+        sendFrame(encodeBinary(data));
+    }
+
+    public void sendPing(byte[] data) throws IOException {
+        sendFrame(encodeFrame(OPCODE_PING, data, 0, data.length));
+    }
+
+    // The frame array must not be modified after this call
+    public void sendFrame(byte[] frame) throws IOException {
+        session.write(frame, 0, frame.length);
+    }
+
+    public void close(int code, String reason) throws IOException {
+        synchronized (session) {
+            if (closeSent || closed) {
+                return;
+            }
+            closeSent = true;
+        }
+
+        byte[] reasonBytes = reason == null ? Response.EMPTY : Utf8.toBytes(reason);
+        int length = Math.min(reasonBytes.length, MAX_CONTROL_PAYLOAD - 2);
+        byte[] data = new byte[2 + length];
+        data[0] = (byte) (code >>> 8);
+        data[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, data, 2, length);
+
+        sendFrame(encodeFrame(OPCODE_CLOSE, data, 0, data.length));
+        session.scheduleClose();
+    }
+
+    // Called by CleanupThread through HttpSession.checkStatus: an idle connection is probed with ping,
+    // and closed if nothing has arrived in response during the next keep-alive period
+    int checkStatus(long currentTime, long keepAlive) {
+        long lastAccessTime = session.lastAccessTime();
+        if (lastAccessTime >= currentTime - keepAlive) {
+            pingSent = false;
+            return Session.ACTIVE;
+        } else if (pingSent && lastAccessTime < currentTime - keepAlive * 2) {
+            return Session.IDLE;
+        }
+
+        if (!pingSent) {
+            try {
+                sendPing(Response.EMPTY);
+                pingSent = true;
+            } catch (IOException e) {
+                return Session.STALE;
+            }
+        }
+        return Session.ACTIVE;
+    }
+
+    void processRead(byte[] buffer) throws IOException {
+        if (payload != null) {
+            readLargePayload();
+            return;
+        }
+
+        int length = carryLength;
+        if (length > 0) {
+            System.arraycopy(carry, 0, buffer, 0, length);
+        }
+        length += session.read(buffer, length, buffer.length - length);
+
+        int pos = 0;
+        while (pos < length && !closed) {
+            int available = length - pos;
+            if (available < 2) break;
+
+            int b0 = buffer[pos] & 0xff;
+            int b1 = buffer[pos + 1] & 0xff;
+            if ((b1 & 0x80) == 0) {
+                protocolError("Unmasked client frame");
+                return;
+            }
+
+            long payloadLength = b1 & 0x7f;
+            int headerLength = 6;
+            if (payloadLength == 126) {
+                if (available < 4) break;
+                payloadLength = (buffer[pos + 2] & 0xff) << 8 | (buffer[pos + 3] & 0xff);
+                headerLength = 8;
+            } else if (payloadLength == 127) {
+                if (available < 10) break;
+                payloadLength = 0;
+                for (int i = 2; i < 10; i++) {
+                    payloadLength = payloadLength << 8 | (buffer[pos + i] & 0xff);
+                }
+                headerLength = 14;
+            }
+            if (available < headerLength) break;
+
+            if (payloadLength < 0 || payloadLength > maxMessageSize) {
+                close(CLOSE_TOO_BIG, "Frame too large");
+                return;
+            }
+
+            int mask = readInt(buffer, pos + headerLength - 4);
+            int frameLength = headerLength + (int) payloadLength;
+            if (frameLength > available) {
+                if (frameLength > buffer.length) {
+                    // Switch to reading the payload directly into a dedicated array
+                    payload = new byte[(int) payloadLength];
+                    payloadRead = available - headerLength;
+                    payloadHeader = b0;
+                    payloadMask = mask;
+                    System.arraycopy(buffer, pos + headerLength, payload, 0, payloadRead);
+                    pos = length;
+                }
+                break;
+            }
+
+            int payloadOffset = pos + headerLength;
+            unmask(buffer, payloadOffset, (int) payloadLength, mask);
+            handleFrame(b0, buffer, payloadOffset, (int) payloadLength);
+            pos += frameLength;
+        }
+
+        carryLength = length - pos;
+        if (carryLength > 0) {
+            if (carry == null || carry.length < carryLength) {
+                carry = new byte[Math.max(carryLength, 256)];
+            }
+            System.arraycopy(buffer, pos, carry, 0, carryLength);
+        }
+    }
+
+    private void readLargePayload() throws IOException {
+        byte[] payload = this.payload;
+        payloadRead += session.read(payload, payloadRead, payload.length - payloadRead);
+        if (payloadRead < payload.length) {
+            return;
+        }
+
+        this.payload = null;
+        unmask(payload, 0, payload.length, payloadMask);
+        handleFrame(payloadHeader, payload, 0, payload.length);
+    }
+
+    protected void handleFrame(int header, byte[] data, int offset, int length) throws IOException {
+        if ((header & 0x70) != 0) {
+            protocolError("Reserved bits set");
+            return;
+        }
+
+        boolean fin = (header & 0x80) != 0;
+        int opcode = header & 0x0f;
+
+        switch (opcode) {
+            case OPCODE_PING:
+            case OPCODE_PONG:
+            case OPCODE_CLOSE:
+                if (!fin || length > MAX_CONTROL_PAYLOAD) {
+                    protocolError("Invalid control frame");
+                } else {
+                    handleControlFrame(opcode, data, offset, length);
+                }
+                return;
+
+            case OPCODE_TEXT:
+            case OPCODE_BINARY:
+                if (messageOpcode != 0) {
+                    protocolError("Unfinished fragmented message");
+                } else if (fin) {
+                    deliver(opcode, data, offset, length);
+                } else {
+                    messageOpcode = opcode;
+                    message = new ByteArrayBuilder(Math.max(length * 2, 256));
+                    message.append(data, offset, length);
+                }
+                return;
+
+            case OPCODE_CONTINUATION:
+                if (messageOpcode == 0) {
+                    protocolError("Unexpected continuation frame");
+                } else if (message.length() + length > maxMessageSize) {
+                    close(CLOSE_TOO_BIG, "Message too large");
+                } else {
+                    message.append(data, offset, length);
+                    if (fin) {
+                        int messageOpcode = this.messageOpcode;
+                        ByteArrayBuilder message = this.message;
+                        this.messageOpcode = 0;
+                        this.message = null;
+                        deliver(messageOpcode, message.buffer(), 0, message.length());
+                    }
+                }
+                return;
+
+            default:
+                protocolError("Unknown opcode " + opcode);
+        }
+    }
+
+    protected void handleControlFrame(int opcode, byte[] data, int offset, int length) throws IOException {
+        if (opcode == OPCODE_PING) {
+            sendFrame(encodeFrame(OPCODE_PONG, data, offset, length));
+        } else if (opcode == OPCODE_PONG) {
+            pingSent = false;
+        } else {
+            int code = CLOSE_NO_STATUS;
+            String reason = "";
+            if (length >= 2) {
+                code = (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+                reason = Utf8.read(data, offset + 2, length - 2);
+            }
+            close(code == CLOSE_NO_STATUS ? CLOSE_NORMAL : code, null);
+            handleClose(code, reason);
+        }
+    }
+
+    protected void deliver(int opcode, byte[] data, int offset, int length) {
+        if (opcode == OPCODE_TEXT) {
+            handler.onText(this, Utf8.read(data, offset, length));
+        } else {
+            handler.onBinary(this, Arrays.copyOfRange(data, offset, offset + length));
+        }
+    }
+
+    protected void protocolError(String message) throws IOException {
+        close(CLOSE_PROTOCOL_ERROR, message);
+        handleClose(CLOSE_PROTOCOL_ERROR, message);
+    }
+
+    void handleClose(int code, String reason) {
+        synchronized (session) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        handler.onClose(this, code, reason);
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return buf[pos] << 24 | (buf[pos + 1] & 0xff) << 16 | (buf[pos + 2] & 0xff) << 8 | (buf[pos + 3] & 0xff);
+    }
+
+    private static void unmask(byte[] data, int offset, int length, int mask) {
+        for (int i = 0; i < length; i++) {
+            data[offset + i] ^= (byte) (mask >>> (24 - ((i & 3) << 3)));
+        }
+    }
+}
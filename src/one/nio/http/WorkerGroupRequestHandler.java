@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package one.nio.http;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+
+// Runs the handler of a @WorkerGroup route in its own worker pool.
+// When the pool is saturated, the request is answered with 503 right away.
+public class WorkerGroupRequestHandler implements RequestHandler {
+    private final HttpServer server;
+    private final RequestHandler handler;
+    private final String group;
+
+    public WorkerGroupRequestHandler(HttpServer server, RequestHandler handler, String group) {
+        this.server = server;
+        this.handler = handler;
+        this.group = group;
+    }
+
+    @Override
+    public void handleRequest(final Request request, final HttpSession session) throws IOException {
+        try {
+            server.asyncExecute(group, new Runnable() {
+                @Override
+                public void run() {
+                    // The request may be a dispatched one rather than the head of the pipeline
+                    Object previous = session.bind(request);
+                    try {
+                        handler.handleRequest(request, session);
+                    } catch (Throwable e) {
+                        session.handleException(e);
+                    } finally {
+                        HttpSession.unbind(previous);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            server.incRequestsRejected();
+            session.writeResponse(request, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+        }
+    }
+}
@@ -23,6 +23,7 @@ import one.nio.http.Param;
 import one.nio.http.Request;
 import one.nio.http.RequestHandler;
 import one.nio.http.Response;
+import one.nio.http.RouteStats;
 
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
@@ -33,17 +34,23 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.concurrent.CompletableFuture;
 
 public class RequestHandlerGenerator extends BytecodeGenerator {
     private int count;
 
     public RequestHandler generateFor(Method m, Object router) {
+        return generateFor(m, router, null);
+    }
+
+    // If stats is not null, the handler records invocations, failures and latency of the method
+    public RequestHandler generateFor(Method m, Object router, RouteStats stats) {
         if (Modifier.isStatic(m.getModifiers())) {
             throw new IllegalArgumentException("Method should not be static: " + m);
         }
 
         Class returnType = m.getReturnType();
-        if (returnType != void.class && returnType != Response.class) {
+        if (returnType != void.class && returnType != Response.class && returnType != CompletableFuture.class) {
             throw new IllegalArgumentException("Invalid return type of " + m);
         }
 
@@ -57,8 +64,11 @@ public class RequestHandlerGenerator extends BytecodeGenerator {
         // private final Object router;
         cv.visitField(ACC_PRIVATE | ACC_FINAL, "router", routerType, null, null).visitEnd();
 
-        // public RequestHandler(Object router);
-        MethodVisitor mv = cv.visitMethod(ACC_PUBLIC, "<init>", "(" + routerType + ")V", null, null);
+        // private final RouteStats stats;
+        cv.visitField(ACC_PRIVATE | ACC_FINAL, "stats", "Lone/nio/http/RouteStats;", null, null).visitEnd();
+
+        // public RequestHandler(Object router, RouteStats stats);
+        MethodVisitor mv = cv.visitMethod(ACC_PUBLIC, "<init>", "(" + routerType + "Lone/nio/http/RouteStats;)V", null, null);
         mv.visitCode();
 
         mv.visitVarInsn(ALOAD, 0);
@@ -66,6 +76,9 @@ public class RequestHandlerGenerator extends BytecodeGenerator {
         mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
         mv.visitVarInsn(ALOAD, 1);
         mv.visitFieldInsn(PUTFIELD, className, "router", routerType);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitFieldInsn(PUTFIELD, className, "stats", "Lone/nio/http/RouteStats;");
 
         mv.visitInsn(RETURN);
         mv.visitMaxs(0, 0);
@@ -75,8 +88,22 @@ public class RequestHandlerGenerator extends BytecodeGenerator {
         mv = cv.visitMethod(ACC_PUBLIC | ACC_FINAL, "handleRequest", "(Lone/nio/http/Request;Lone/nio/http/HttpSession;)V", null, null);
         mv.visitCode();
 
-        if (m.getReturnType() == Response.class) {
+        // stats.start(request); try { ... } catch (Throwable e) { stats.failed(request); throw e; }
+        Label tryStart = new Label();
+        Label tryEnd = new Label();
+        Label catchHandler = new Label();
+        if (stats != null) {
+            mv.visitTryCatchBlock(tryStart, tryEnd, catchHandler, "java/lang/Throwable");
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "stats", "Lone/nio/http/RouteStats;");
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "one/nio/http/RouteStats", "start", "(Lone/nio/http/Request;)V");
+            mv.visitLabel(tryStart);
+        }
+
+        if (returnType != void.class) {
             mv.visitVarInsn(ALOAD, 2);
+            mv.visitVarInsn(ALOAD, 1);
         }
 
         mv.visitVarInsn(ALOAD, 0);
@@ -84,16 +111,31 @@ public class RequestHandlerGenerator extends BytecodeGenerator {
         setupArguments(mv, m);
         emitInvoke(mv, m);
 
-        if (m.getReturnType() == Response.class) {
-            mv.visitMethodInsn(INVOKEVIRTUAL, "one/nio/http/HttpSession", "writeResponse", "(Lone/nio/http/Response;)V");
+        if (returnType == Response.class) {
+            mv.visitMethodInsn(INVOKEVIRTUAL, "one/nio/http/HttpSession", "writeResponse", "(Lone/nio/http/Request;Lone/nio/http/Response;)V");
+        } else if (returnType == CompletableFuture.class) {
+            mv.visitMethodInsn(INVOKEVIRTUAL, "one/nio/http/HttpSession", "writeResponse", "(Lone/nio/http/Request;Ljava/util/concurrent/CompletableFuture;)V");
         }
 
-        mv.visitInsn(RETURN);
+        if (stats != null) {
+            mv.visitLabel(tryEnd);
+            mv.visitInsn(RETURN);
+            mv.visitLabel(catchHandler);
+            mv.visitVarInsn(ASTORE, 3);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "stats", "Lone/nio/http/RouteStats;");
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "one/nio/http/RouteStats", "failed", "(Lone/nio/http/Request;)V");
+            mv.visitVarInsn(ALOAD, 3);
+            mv.visitInsn(ATHROW);
+        } else {
+            mv.visitInsn(RETURN);
+        }
         mv.visitMaxs(0, 0);
         mv.visitEnd();
 
         cv.visitEnd();
-        return instantiate(cv.toByteArray(), m, router);
+        return instantiate(cv.toByteArray(), m, router, stats);
     }
 
     private void setupArguments(MethodVisitor mv, Method m) {
@@ -235,11 +277,11 @@ public class RequestHandlerGenerator extends BytecodeGenerator {
         }
     }
 
-    private RequestHandler instantiate(byte[] classData, Method m, Object router) {
+    private RequestHandler instantiate(byte[] classData, Method m, Object router, RouteStats stats) {
         try {
             Class<?> resultClass = super.defineClass(classData);
-            Constructor c = resultClass.getConstructor(m.getDeclaringClass());
-            return (RequestHandler) c.newInstance(router);
+            Constructor c = resultClass.getConstructor(m.getDeclaringClass(), RouteStats.class);
+            return (RequestHandler) c.newInstance(router, stats);
         } catch (Exception e) {
             throw new IllegalArgumentException("Cannot generate valid RequestHandler for " + m, e);
         }
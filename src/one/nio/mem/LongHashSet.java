@@ -118,6 +118,7 @@ public class LongHashSet {
 
     public void clear() {
         unsafe.setMemory(keys, (long) capacity * 8, (byte) 0);
+        size = 0;
     }
 
     protected void incrementSize() {
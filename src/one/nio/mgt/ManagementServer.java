@@ -69,6 +69,11 @@ public class ManagementServer extends HttpServer {
         return getJmxResponse("one.nio.server:type=Server,*", "port", "AcceptedSessions,Connections,RequestsProcessed,RequestsRejected,Workers,WorkersActive,SelectorMaxReady");
     }
 
+    @Path("/monitor/routes")
+    public Response getMonitorRoutesResponse() {
+        return getJmxResponse("one.nio.http:type=Route,*", "port,path", "Requests,Errors,BytesSent,AvgLatency,Latency50,Latency99,Latency999,MaxLatency");
+    }
+
     @Path("/jmx")
     public Response getJmxResponse(@Param("name") String name, @Param("prop=") String prop, @Param("attr") String attr) {
         if (name == null) {
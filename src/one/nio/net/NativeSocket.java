@@ -159,6 +159,9 @@ class NativeSocket extends Socket {
     native void connect0(byte[] address, int port) throws IOException;
     native void bind0(byte[] address, int port, int backlog) throws IOException;
     native long sendFile0(int sourceFD, long offset, long count) throws IOException;
+    static native int splice0(int fdIn, int fdOut, int count, int flags) throws IOException;
+    static native int pipe0(int[] fds, int size) throws IOException;
+    static native void closeFD(int fd);
     native int getsockname(byte[] buffer);
     native int getpeername(byte[] buffer);
 }
@@ -22,6 +22,7 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.SSLException;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.nio.channels.SelectionKey;
@@ -123,10 +124,21 @@ public class Session implements Closeable {
         }
     }
 
+    // Another thread may have queued a write meanwhile; its WRITEABLE interest must not be lost
+    private void listenReadable() {
+        if (eventsToListen != READABLE) {
+            synchronized (this) {
+                if (queueHead == null) {
+                    listen(READABLE);
+                }
+            }
+        }
+    }
+
     public int read(byte[] data, int offset, int count) throws IOException {
         int bytesRead = socket.read(data, offset, count);
         if (bytesRead >= 0) {
-            listen(READABLE);
+            listenReadable();
             return bytesRead;
         } else {
             listen(SSL | WRITEABLE);
@@ -137,7 +149,7 @@ public class Session implements Closeable {
     public int readRaw(long address, int count) throws IOException {
         int bytesRead = socket.readRaw(address, count, 0);
         if (bytesRead >= 0) {
-            listen(READABLE);
+            listenReadable();
             return bytesRead;
         } else {
             listen(SSL | WRITEABLE);
@@ -270,4 +282,31 @@ public class Session implements Closeable {
             return bytes;
         }
     }
+
+    public static class FileQueueItem extends QueueItem {
+        protected RandomAccessFile file;
+        protected long offset;
+        protected long count;
+        protected long written;
+
+        public FileQueueItem(RandomAccessFile file, long offset, long count) {
+            this.file = file;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        @Override
+        public int remaining() {
+            return (int) Math.min(count - written, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int write(Socket socket) throws IOException {
+            long bytes = socket.sendFile(file, offset + written, count - written);
+            if (bytes > 0) {
+                written += bytes;
+            }
+            return (int) Math.min(bytes, Integer.MAX_VALUE);
+        }
+    }
 }
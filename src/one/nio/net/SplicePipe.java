@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Kernel pipe for relaying data between sockets with splice(2).
+// The data moves socket -> pipe -> socket entirely in kernel space and never reaches the Java heap.
+// Requires the native library; SSL sockets are not supported.
+public class SplicePipe implements Closeable {
+    public static final int DEFAULT_SIZE = 1024 * 1024;
+
+    private static final int SPLICE_F_MOVE     = 1;
+    private static final int SPLICE_F_NONBLOCK = 2;
+
+    private final int capacity;
+    private int readFD;
+    private int writeFD;
+
+    public SplicePipe() throws IOException {
+        this(DEFAULT_SIZE);
+    }
+
+    public SplicePipe(int size) throws IOException {
+        int[] fds = new int[2];
+        this.capacity = NativeSocket.pipe0(fds, size);
+        this.readFD = fds[0];
+        this.writeFD = fds[1];
+    }
+
+    public static boolean isSupported(Socket socket) {
+        return socket instanceof NativeSocket && socket.getSslContext() == null;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // Moves up to count bytes from the socket into the pipe.
+    // For a blocking socket, waits until some data arrives; returns 0 if the socket timeout expires
+    public int readFrom(Socket source, int count) throws IOException {
+        return NativeSocket.splice0(((NativeSocket) source).fd, writeFD, count, SPLICE_F_MOVE);
+    }
+
+    // Moves up to count bytes from the pipe to the socket; returns 0 if the socket buffer is full
+    public int writeTo(Socket target, int count) throws IOException {
+        return NativeSocket.splice0(readFD, ((NativeSocket) target).fd, count, SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (readFD >= 0) {
+            NativeSocket.closeFD(readFD);
+            NativeSocket.closeFD(writeFD);
+            readFD = writeFD = -1;
+        }
+    }
+}
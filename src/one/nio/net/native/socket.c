@@ -355,6 +355,50 @@ Java_one_nio_net_NativeSocket_sendFile0(JNIEnv* env, jobject self, jint sourceFD
     return 0;
 }
 
+JNIEXPORT jint JNICALL
+Java_one_nio_net_NativeSocket_splice0(JNIEnv* env, jclass cls, jint fdIn, jint fdOut, jint count, jint flags) {
+    if (fdIn == -1 || fdOut == -1) {
+        throw_socket_closed(env);
+    } else if (count != 0) {
+        ssize_t result;
+        do {
+            result = splice(fdIn, NULL, fdOut, NULL, count, flags);
+        } while (result < 0 && errno == EINTR);
+
+        if (result > 0) {
+            return result;
+        } else if (result == 0) {
+            throw_socket_closed(env);
+        } else if (errno != EAGAIN && errno != EWOULDBLOCK) {
+            // EAGAIN means the socket timeout expired or a non-blocking end is not ready; report 0 bytes
+            throw_io_exception(env);
+        }
+    }
+    return 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_one_nio_net_NativeSocket_pipe0(JNIEnv* env, jclass cls, jintArray fds, jint size) {
+    int pipefd[2];
+    if (pipe2(pipefd, O_CLOEXEC) != 0) {
+        throw_io_exception(env);
+        return 0;
+    }
+
+    // Pipe capacity may be limited by /proc/sys/fs/pipe-max-size; use whatever is granted
+    if (size > 0) {
+        fcntl(pipefd[1], F_SETPIPE_SZ, size);
+    }
+
+    (*env)->SetIntArrayRegion(env, fds, 0, 2, (jint*)pipefd);
+    return fcntl(pipefd[1], F_GETPIPE_SZ);
+}
+
+JNIEXPORT void JNICALL
+Java_one_nio_net_NativeSocket_closeFD(JNIEnv* env, jclass cls, jint fd) {
+    close(fd);
+}
+
 JNIEXPORT jint JNICALL
 Java_one_nio_net_NativeSocket_getsockname(JNIEnv* env, jobject self, jbyteArray buffer) {
     int fd = (*env)->GetIntField(env, self, f_fd);
@@ -18,29 +18,167 @@ package one.nio.rpc;
 
 import one.nio.net.ConnectionString;
 import one.nio.net.Socket;
+import one.nio.pool.PoolException;
 import one.nio.pool.SocketPool;
-import one.nio.serial.CalcSizeStream;
-import one.nio.serial.DataStream;
 import one.nio.serial.DeserializeStream;
+import one.nio.serial.GrowableSerializeStream;
 import one.nio.serial.Repository;
-import one.nio.serial.SerializeStream;
 import one.nio.serial.Serializer;
 import one.nio.serial.SerializerNotFoundException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// Synchronous calls borrow a pooled connection for the whole call.
+// Asynchronous calls are multiplexed over a few shared connections (`multiplexConnections`)
+// using request IDs; servers that do not support request IDs are called through the pool
+// from a background thread instead.
+// With `compressionThreshold`, every new connection starts with a handshake; if the server
+// supports compression, larger packets are LZ4-compressed in both directions.
 public class RpcClient extends SocketPool implements InvocationHandler {
+    private static final Logger log = LoggerFactory.getLogger(RpcClient.class);
+
+    private static final long TIMEOUT_CHECK_INTERVAL = 100;
+    private static final long PROBE_INTERVAL = 60000;
+
+    protected final MultiplexedConnection[] multiplexedConnections;
+    protected final boolean[] connecting;
+    protected final AtomicInteger nextRequestId = new AtomicInteger();
+    protected volatile long handshakeUnsupportedUntil;
+    protected int compressionThreshold;
+    protected Set<Socket> compressingSockets;
+    protected final int asyncQueueSize;
+    protected ThreadPoolExecutor asyncExecutor;
+    protected Timer timeoutTimer;
 
     public RpcClient(ConnectionString conn) {
         super(conn);
+        this.multiplexedConnections = new MultiplexedConnection[conn.getIntParam("multiplexConnections", 1)];
+        this.connecting = new boolean[multiplexedConnections.length];
+        this.asyncQueueSize = conn.getIntParam("asyncQueueSize", 65536);
+    }
+
+    @Override
+    protected void setProperties(ConnectionString conn) {
+        super.setProperties(conn);
+        // Assigned here, since the pool may create connections before the constructor completes
+        this.compressionThreshold = conn.getIntParam("compressionThreshold", 0);
+        this.compressingSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    }
+
+    @Override
+    public Socket createObject() throws PoolException {
+        Socket socket = super.createObject();
+        if (compressionThreshold <= 0 || System.currentTimeMillis() < handshakeUnsupportedUntil) {
+            return socket;
+        }
+
+        int capabilities;
+        try {
+            capabilities = handshake(socket, RpcPacket.CAPABILITY_COMPRESSION);
+        } catch (IOException e) {
+            socket.close();
+            throw new PoolException(name() + " handshake failed", e);
+        }
+
+        if (capabilities < 0) {
+            // The server has dropped the connection
+            socket.close();
+            return super.createObject();
+        } else if ((capabilities & RpcPacket.CAPABILITY_COMPRESSION) != 0) {
+            compressingSockets.add(socket);
+        }
+        return socket;
+    }
+
+    @Override
+    public void destroyObject(Socket socket) {
+        compressingSockets.remove(socket);
+        super.destroyObject(socket);
+    }
+
+    // All calls travel in one packet and are answered in one packet, results in the same order.
+    // A call that failed on the server yields its exception in place of the result
+    public List<Object> invokeBatch(List<RemoteCall> calls) throws Exception {
+        Object[] results = (Object[]) invoke(calls.toArray(new RemoteCall[calls.size()]));
+        return Arrays.asList(results);
+    }
+
+    public CompletableFuture<Object> invokeAsync(Method method, Object... args) {
+        return invokeAsync(new RemoteCall(method, args));
+    }
+
+    public CompletableFuture<Object> invokeAsync(Object request) {
+        AsyncCall call = new AsyncCall(request, newRequestId());
+        if (System.currentTimeMillis() < handshakeUnsupportedUntil) {
+            invokeInBackground(call);
+            return call;
+        }
+
+        try {
+            MultiplexedConnection connection = getMultiplexedConnection();
+            if (connection == null) {
+                invokeInBackground(call);
+            } else {
+                GrowableSerializeStream ss = RpcPacket.serialize(request, call.requestId);
+                try {
+                    connection.send(call, ss.array(), ss.count());
+                } finally {
+                    RpcPacket.release(ss);
+                }
+            }
+        } catch (Exception e) {
+            call.completeExceptionally(e);
+        }
+        return call;
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        synchronized (multiplexedConnections) {
+            for (MultiplexedConnection connection : multiplexedConnections) {
+                if (connection != null) {
+                    connection.close(new SocketException("Client closed"));
+                }
+            }
+            if (asyncExecutor != null) {
+                asyncExecutor.shutdown();
+            }
+            if (timeoutTimer != null) {
+                timeoutTimer.cancel();
+            }
+        }
     }
 
     public Object invoke(Object request) throws Exception {
-        byte[] buffer = invokeRaw(request);
+        return readResponse(request, invokeRaw(request));
+    }
 
+    // Fetches missing serializers for the response; resends the request
+    // only when the server could not deserialize it and so did not execute it
+    private Object readResponse(Object request, byte[] buffer) throws Exception {
         for (;;) {
             Object response;
             try {
@@ -86,45 +224,368 @@ public class RpcClient extends SocketPool implements InvocationHandler {
     }
 
     private byte[] invokeRaw(Object request) throws Exception {
-        byte[] buffer = serialize(request);
-
-        Socket socket = borrowObject();
+        GrowableSerializeStream ss = RpcPacket.serialize(request, 0);
         try {
+            byte[] header = new byte[RpcPacket.HEADER_SIZE];
+            Socket socket = borrowObject();
             try {
-                sendRequest(socket, buffer);
-            } catch (SocketException e) {
-                // Stale connection? Retry on a fresh socket
-                destroyObject(socket);
-                socket = createObject();
-                sendRequest(socket, buffer);
+                try {
+                    sendRequest(socket, ss, header);
+                } catch (SocketException e) {
+                    // Stale connection? Retry on a fresh socket
+                    destroyObject(socket);
+                    socket = createObject();
+                    sendRequest(socket, ss, header);
+                }
+
+                int responseSize = RpcPacket.getSize(header, socket);
+                byte[] buffer = new byte[responseSize];
+                socket.readFully(buffer, 0, responseSize);
+                if (RpcPacket.isCompressed(header)) {
+                    buffer = RpcPacket.decompress(buffer, responseSize, socket);
+                }
+
+                returnObject(socket);
+                return buffer;
+            } catch (Exception e) {
+                invalidateObject(socket);
+                throw e;
+            }
+        } finally {
+            RpcPacket.release(ss);
+        }
+    }
+
+    // Zero is reserved for requests without ID
+    private int newRequestId() {
+        int requestId;
+        while ((requestId = nextRequestId.incrementAndGet()) == 0) ;
+        return requestId;
+    }
+
+    // Returns null while the connection is being opened in background
+    private MultiplexedConnection getMultiplexedConnection() throws SocketException {
+        final int index = (nextRequestId.get() & 0x7fffffff) % multiplexedConnections.length;
+        synchronized (multiplexedConnections) {
+            MultiplexedConnection connection = multiplexedConnections[index];
+            if (connection != null && !connection.closed) {
+                return connection;
+            } else if (closed) {
+                throw new SocketException("Client closed");
+            } else if (connecting[index]) {
+                return null;
             }
+            connecting[index] = true;
+        }
+
+        // A thread of its own, so that the connect does not wait behind queued background calls
+        Thread connector = new Thread("RpcClient connect " + name()) {
+            @Override
+            public void run() {
+                MultiplexedConnection connection = null;
+                try {
+                    connection = openMultiplexedConnection();
+                } catch (Exception e) {
+                    log.debug(name() + " cannot open multiplexed connection", e);
+                }
+                installMultiplexedConnection(index, connection);
+            }
+        };
+        connector.setDaemon(true);
+        connector.start();
+        return null;
+    }
+
+    private void installMultiplexedConnection(int index, MultiplexedConnection connection) {
+        synchronized (multiplexedConnections) {
+            connecting[index] = false;
+            if (connection != null) {
+                if (closed) {
+                    connection.close(new SocketException("Client closed"));
+                } else {
+                    multiplexedConnections[index] = connection;
+                }
+            }
+        }
+    }
 
-            int responseSize = RpcPacket.getSize(buffer, socket);
-            if (responseSize > 4) buffer = new byte[responseSize];
-            socket.readFully(buffer, 0, responseSize);
+    // Returns null if the server does not support request IDs
+    private MultiplexedConnection openMultiplexedConnection() throws Exception {
+        Socket socket = super.createObject();
+        try {
+            int capabilities = handshake(socket, compressionThreshold > 0
+                    ? RpcPacket.CAPABILITY_MULTIPLEX | RpcPacket.CAPABILITY_COMPRESSION
+                    : RpcPacket.CAPABILITY_MULTIPLEX);
+            if (capabilities < 0) {
+                socket.close();
+                return null;
+            }
 
-            returnObject(socket);
-            return buffer;
+            // The socket keeps readTimeout to bound writes; the reader thread
+            // ignores timeouts between responses, and calls expire on their own
+            startTimeoutTimer();
+            boolean compression = (capabilities & RpcPacket.CAPABILITY_COMPRESSION) != 0;
+            MultiplexedConnection connection = new MultiplexedConnection(socket, compression);
+            connection.start();
+            return connection;
         } catch (Exception e) {
-            invalidateObject(socket);
+            socket.close();
+            throw e;
+        }
+    }
+
+    // Returns the capabilities supported by the server, or -1 if the server
+    // does not understand handshakes and has closed the connection
+    private int handshake(Socket socket, int capabilities) throws IOException {
+        byte[] handshake = new byte[RpcPacket.MULTIPLEXED_HEADER_SIZE];
+        RpcPacket.putInt(handshake, 0, RpcPacket.FLAG_REQUEST_ID);
+        RpcPacket.putInt(handshake, 4, capabilities);
+        socket.writeFully(handshake, 0, handshake.length);
+
+        try {
+            socket.readFully(handshake, 0, handshake.length);
+        } catch (SocketTimeoutException e) {
             throw e;
+        } catch (IOException e) {
+            // An older server closes the connection on an unknown header
+            log.info(name() + " does not support handshakes; using plain pooled connections");
+            handshakeUnsupportedUntil = System.currentTimeMillis() + PROBE_INTERVAL;
+            return -1;
+        }
+
+        if (RpcPacket.getInt(handshake, 0) != RpcPacket.FLAG_REQUEST_ID) {
+            throw new IOException("Invalid handshake response from " + socket.getRemoteAddress());
+        }
+        return RpcPacket.getInt(handshake, 4);
+    }
+
+    @Override
+    public synchronized void setMaxCount(int maxCount) {
+        super.setMaxCount(maxCount);
+        if (asyncExecutor != null) {
+            if (maxCount > asyncExecutor.getMaximumPoolSize()) {
+                asyncExecutor.setMaximumPoolSize(maxCount);
+                asyncExecutor.setCorePoolSize(maxCount);
+            } else {
+                asyncExecutor.setCorePoolSize(maxCount);
+                asyncExecutor.setMaximumPoolSize(maxCount);
+            }
+        }
+    }
+
+    // Background calls block on the socket pool, so there is no use in more threads than pooled sockets
+    private synchronized ExecutorService asyncExecutor() {
+        if (asyncExecutor == null) {
+            asyncExecutor = new ThreadPoolExecutor(maxCount, maxCount, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(asyncQueueSize), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RpcClient async " + name());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            asyncExecutor.allowCoreThreadTimeOut(true);
+        }
+        return asyncExecutor;
+    }
+
+    // Used when multiplexing is not possible
+    private void invokeInBackground(final AsyncCall call) {
+        try {
+            asyncExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        call.complete(invoke(call.request));
+                    } catch (Throwable e) {
+                        call.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            call.completeExceptionally(e);
         }
     }
 
-    private byte[] serialize(Object request) throws IOException {
-        CalcSizeStream css = new CalcSizeStream();
-        css.writeObject(request);
-        int requestSize = css.count();
+    // Used when a serializer has to be fetched before the response can be read
+    private void completeInBackground(final AsyncCall call, final byte[] buffer) {
+        try {
+            asyncExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        call.complete(readResponse(call.request, buffer));
+                    } catch (Throwable e) {
+                        call.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            call.completeExceptionally(e);
+        }
+    }
+
+    private synchronized void startTimeoutTimer() {
+        if (timeoutTimer != null || readTimeout <= 0 || closed) {
+            return;
+        }
+        timeoutTimer = new Timer("RpcClient timeouts " + name(), true);
+        timeoutTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                long currentTime = System.currentTimeMillis();
+                MultiplexedConnection[] connections;
+                synchronized (multiplexedConnections) {
+                    connections = multiplexedConnections.clone();
+                }
+                for (MultiplexedConnection connection : connections) {
+                    if (connection != null) {
+                        connection.expire(currentTime);
+                    }
+                }
+            }
+        }, TIMEOUT_CHECK_INTERVAL, TIMEOUT_CHECK_INTERVAL);
+    }
+
+    protected static class AsyncCall extends CompletableFuture<Object> {
+        final Object request;
+        final int requestId;
+        long deadline;
+
+        AsyncCall(Object request, int requestId) {
+            this.request = request;
+            this.requestId = requestId;
+        }
+    }
+
+    protected class MultiplexedConnection extends Thread {
+        final Socket socket;
+        final boolean compression;
+        final ConcurrentHashMap<Integer, AsyncCall> pending = new ConcurrentHashMap<Integer, AsyncCall>();
+        volatile boolean closed;
+
+        MultiplexedConnection(Socket socket, boolean compression) {
+            super("RpcClient reader " + name());
+            this.socket = socket;
+            this.compression = compression;
+            setDaemon(true);
+        }
+
+        void send(AsyncCall call, byte[] buffer, int length) {
+            if (compression && length - RpcPacket.MULTIPLEXED_HEADER_SIZE >= compressionThreshold) {
+                byte[] compressed = RpcPacket.compress(buffer, length, RpcPacket.MULTIPLEXED_HEADER_SIZE);
+                if (compressed != null) {
+                    buffer = compressed;
+                    length = compressed.length;
+                }
+            }
+
+            call.deadline = readTimeout > 0 ? System.currentTimeMillis() + readTimeout : Long.MAX_VALUE;
+            pending.put(call.requestId, call);
+            try {
+                synchronized (this) {
+                    socket.writeFully(buffer, 0, length);
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+            if (closed && pending.remove(call.requestId) != null) {
+                call.completeExceptionally(new SocketException("Connection closed"));
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] header = new byte[RpcPacket.MULTIPLEXED_HEADER_SIZE];
+            try {
+                while (readHeader(header)) {
+                    if (!RpcPacket.hasRequestId(header)) {
+                        throw new IOException("Unexpected response without request ID");
+                    }
+
+                    byte[] buffer = new byte[RpcPacket.getSize(header, socket)];
+                    socket.readFully(buffer, 0, buffer.length);
+                    if (RpcPacket.isCompressed(header)) {
+                        buffer = RpcPacket.decompress(buffer, buffer.length, socket);
+                    }
+
+                    AsyncCall call = pending.remove(RpcPacket.getInt(header, 4));
+                    if (call != null) {
+                        complete(call, buffer);
+                    }
+                }
+            } catch (Exception e) {
+                close(e);
+            }
+        }
+
+        // Returns false once the connection is closed
+        private boolean readHeader(byte[] header) throws IOException {
+            int bytes = 0;
+            while (bytes < header.length && !closed) {
+                try {
+                    bytes += socket.read(header, bytes, header.length - bytes);
+                } catch (SocketTimeoutException e) {
+                    // No response for readTimeout: the connection is idle
+                }
+            }
+            return !closed;
+        }
+
+        private void complete(AsyncCall call, byte[] buffer) {
+            Object response;
+            try {
+                response = new DeserializeStream(buffer).readObject();
+            } catch (SerializerNotFoundException e) {
+                completeInBackground(call, buffer);
+                return;
+            } catch (Exception e) {
+                call.completeExceptionally(e);
+                return;
+            }
+
+            if (response instanceof SerializerNotFoundException) {
+                completeInBackground(call, buffer);
+            } else if (response instanceof Exception) {
+                call.completeExceptionally((Exception) response);
+            } else {
+                call.complete(response);
+            }
+        }
+
+        void expire(long currentTime) {
+            for (Iterator<AsyncCall> iterator = pending.values().iterator(); iterator.hasNext(); ) {
+                AsyncCall call = iterator.next();
+                if (currentTime >= call.deadline && pending.remove(call.requestId) != null) {
+                    call.completeExceptionally(new SocketTimeoutException("RPC call timed out"));
+                }
+            }
+        }
 
-        byte[] buffer = new byte[requestSize + 4];
-        DataStream ds = css.hasCycles() ? new SerializeStream(buffer) : new DataStream(buffer);
-        ds.writeInt(requestSize);
-        ds.writeObject(request);
-        return buffer;
+        void close(Exception cause) {
+            closed = true;
+            socket.close();
+            for (Integer requestId : pending.keySet()) {
+                AsyncCall call = pending.remove(requestId);
+                if (call != null) {
+                    call.completeExceptionally(cause);
+                }
+            }
+        }
     }
 
-    private void sendRequest(Socket socket, byte[] buffer) throws IOException {
-        socket.writeFully(buffer, 0, buffer.length);
-        socket.readFully(buffer, 0, 4);
+    private void sendRequest(Socket socket, GrowableSerializeStream ss, byte[] header) throws IOException {
+        byte[] buffer = ss.array();
+        int length = ss.count();
+        if (length - RpcPacket.HEADER_SIZE >= compressionThreshold && compressingSockets.contains(socket)) {
+            byte[] compressed = RpcPacket.compress(buffer, length, RpcPacket.HEADER_SIZE);
+            if (compressed != null) {
+                buffer = compressed;
+                length = compressed.length;
+            }
+        }
+        socket.writeFully(buffer, 0, length);
+        socket.readFully(header, 0, header.length);
     }
 }
@@ -16,23 +16,128 @@
 
 package one.nio.rpc;
 
+import one.nio.lz4.LZ4;
 import one.nio.net.Socket;
+import one.nio.serial.GrowableSerializeStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
 
+// Packet header is a 4-byte big-endian size of the payload with flags in the upper bits.
+// FLAG_REQUEST_ID means the header is followed by a 4-byte request ID: such requests may be
+// answered out of order, and the response carries the same ID. A packet with a request ID and
+// an empty payload is a handshake; its ID field holds a capability mask instead.
+// FLAG_COMPRESSED means the payload is a 4-byte size of the original payload followed by
+// an LZ4 block. Compressed packets are sent only to a peer that announced CAPABILITY_COMPRESSION.
 class RpcPacket {
     private static final Logger log = LoggerFactory.getLogger(RpcPacket.class);
 
     private static final int WARN_PACKET_SIZE = 4 * 1024 * 1024;
     private static final int ERROR_PACKET_SIZE = 128 * 1024 * 1024;
 
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    private static final ThreadLocal<GrowableSerializeStream> BUFFER = new ThreadLocal<GrowableSerializeStream>();
+
+    static final int FLAG_REQUEST_ID = 0x80000000;
+    static final int FLAG_COMPRESSED = 0x40000000;
+    static final int SIZE_MASK = 0x3fffffff;
+
+    static final int HEADER_SIZE = 4;
+    static final int MULTIPLEXED_HEADER_SIZE = 8;
+
+    // Capabilities exchanged in the handshake
+    static final int CAPABILITY_MULTIPLEX = 1;
+    static final int CAPABILITY_COMPRESSION = 2;
+    static final int SERVER_CAPABILITIES = CAPABILITY_MULTIPLEX | CAPABILITY_COMPRESSION;
+
+    static int getInt(byte[] buffer, int offset) {
+        return buffer[offset] << 24 | (buffer[offset + 1] & 0xff) << 16 | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static boolean hasRequestId(byte[] buffer) {
+        return (buffer[0] & 0x80) != 0;
+    }
+
+    static boolean isCompressed(byte[] buffer) {
+        return (buffer[0] & 0x40) != 0;
+    }
+
+    // Serializes a packet in one pass into the buffer of the calling thread, then fills in the header.
+    // A nonzero requestId selects the multiplexed header. The packet occupies [0, count()) of array()
+    // and stays valid until release()
+    static GrowableSerializeStream serialize(Object obj, int requestId) throws IOException {
+        GrowableSerializeStream ss = BUFFER.get();
+        if (ss == null) {
+            BUFFER.set(ss = new GrowableSerializeStream(INITIAL_BUFFER_SIZE));
+        }
+
+        int headerSize = requestId == 0 ? HEADER_SIZE : MULTIPLEXED_HEADER_SIZE;
+        ss.reset(headerSize);
+        ss.writeObject(obj);
+
+        byte[] array = ss.array();
+        int size = ss.count() - headerSize;
+        if (requestId == 0) {
+            putInt(array, 0, size);
+        } else {
+            putInt(array, 0, size | FLAG_REQUEST_ID);
+            putInt(array, 4, requestId);
+        }
+        return ss;
+    }
+
+    // Drops serialized objects, and the buffer itself if it has grown too large to keep
+    static void release(GrowableSerializeStream ss) {
+        ss.close();
+        if (ss.array().length > MAX_RETAINED_BUFFER) {
+            BUFFER.remove();
+        }
+    }
+
+    // Compresses the payload following the header of the given size.
+    // Returns null if compression does not make the packet smaller
+    static byte[] compress(byte[] packet, int length, int headerSize) {
+        int size = length - headerSize;
+        byte[] result = new byte[headerSize + 4 + LZ4.compressBound(size)];
+        int compressedSize = LZ4.compress(packet, headerSize, result, headerSize + 4, size) + 4;
+        if (compressedSize >= size) {
+            return null;
+        }
+
+        System.arraycopy(packet, 0, result, 0, headerSize);
+        putInt(result, 0, (getInt(packet, 0) & ~SIZE_MASK) | FLAG_COMPRESSED | compressedSize);
+        putInt(result, headerSize, size);
+        return Arrays.copyOf(result, headerSize + compressedSize);
+    }
+
+    static byte[] decompress(byte[] payload, int length, Socket socket) throws IOException {
+        int size = length > 4 ? getInt(payload, 0) : -1;
+        if (size <= 0 || size >= ERROR_PACKET_SIZE) {
+            throw new IOException("Invalid compressed RPC packet from " + socket.getRemoteAddress());
+        }
+
+        byte[] result = new byte[size];
+        if (LZ4.decompress(payload, 4, result, 0, length - 4) != size) {
+            throw new IOException("Invalid compressed RPC packet from " + socket.getRemoteAddress());
+        }
+        return result;
+    }
+
     static int getSize(byte[] buffer, Socket socket) throws IOException {
-        int size = buffer[0] << 24 | (buffer[1] & 0xff) << 16 | (buffer[2] & 0xff) << 8 | (buffer[3] & 0xff);
+        int size = getInt(buffer, 0) & SIZE_MASK;
 
-        if (size < 0 || size >= ERROR_PACKET_SIZE) {
+        if (size >= ERROR_PACKET_SIZE) {
             throw new IOException("Invalid RPC packet from " + socket.getRemoteAddress());
         } else if (size >= WARN_PACKET_SIZE) {
             log.warn("RPC packet from " + socket.getRemoteAddress() + " is too large: " + size);
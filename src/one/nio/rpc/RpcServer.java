@@ -20,26 +20,69 @@ import one.nio.net.ConnectionString;
 import one.nio.net.Socket;
 import one.nio.server.RejectedSessionException;
 import one.nio.server.Server;
+import one.nio.server.WorkerGroup;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class RpcServer<S> extends Server {
     protected final S service;
+    protected final Map<Method, String> methodGroups = new ConcurrentHashMap<Method, String>();
+    protected boolean parallelBatches;
+    // Responses of this size and larger are compressed for clients that support it; 0 disables
+    protected int compressionThreshold;
 
     public RpcServer(ConnectionString conn) throws IOException {
-        super(conn);
-        this.service = null;
+        this(conn, null);
     }
 
     public RpcServer(ConnectionString conn, S service) throws IOException {
         super(conn);
         this.service = service;
+        this.parallelBatches = conn.getBooleanParam("parallelBatches", false);
+        this.compressionThreshold = conn.getIntParam("compressionThreshold", 65536);
+    }
+
+    @Override
+    public boolean reconfigure(ConnectionString conn) throws IOException {
+        if (!super.reconfigure(conn)) {
+            return false;
+        }
+        parallelBatches = conn.getBooleanParam("parallelBatches", false);
+        compressionThreshold = conn.getIntParam("compressionThreshold", 65536);
+        return true;
     }
 
     public final S service() {
         return service;
     }
 
+    // Returns the @WorkerGroup of the invoked method, looked up on the interface and then
+    // on the service implementation, or null if the call is not bound to a group
+    public String workerGroupOf(Object request) {
+        if (!(request instanceof RemoteCall)) {
+            return null;
+        }
+
+        Method method = ((RemoteCall) request).method();
+        String group = methodGroups.get(method);
+        if (group == null) {
+            WorkerGroup annotation = method.getAnnotation(WorkerGroup.class);
+            if (annotation == null && service != null) {
+                try {
+                    Method impl = service.getClass().getMethod(method.getName(), method.getParameterTypes());
+                    annotation = impl.getAnnotation(WorkerGroup.class);
+                } catch (NoSuchMethodException e) {
+                    // Will fail on invocation
+                }
+            }
+            methodGroups.put(method, group = annotation == null ? "" : annotation.value());
+        }
+        return group.isEmpty() ? null : group;
+    }
+
     @Override
     public RpcSession<S> createSession(Socket socket) throws RejectedSessionException {
         return new RpcSession<S>(socket, this);
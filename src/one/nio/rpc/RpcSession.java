@@ -18,22 +18,31 @@ package one.nio.rpc;
 
 import one.nio.net.Session;
 import one.nio.net.Socket;
-import one.nio.serial.CalcSizeStream;
-import one.nio.serial.DataStream;
 import one.nio.serial.DeserializeStream;
-import one.nio.serial.SerializeStream;
+import one.nio.serial.GrowableSerializeStream;
 import one.nio.serial.SerializerNotFoundException;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RpcSession<S> extends Session {
     private static final int BUFFER_SIZE = 8000;
 
+    // Marks a request from a client that does not use request IDs
+    protected static final int NO_REQUEST_ID = 0;
+
     protected final RpcServer<S> server;
     private byte[] buffer;
     private int bytesRead;
-    private int requestSize;
+    private int requestSize = -1;
+    private int requestId;
+    private boolean requestCompressed;
+    private volatile boolean compressResponses;
+    private Executor executor;
 
     public RpcSession(Socket socket, RpcServer<S> server) {
         super(socket);
@@ -47,17 +56,36 @@ public class RpcSession<S> extends Session {
         int bytesRead = this.bytesRead;
         int requestSize = this.requestSize;
 
-        // Read 4-bytes header
-        if (requestSize == 0) {
-            bytesRead += super.read(buffer, bytesRead, 4 - bytesRead);
-            if (bytesRead < 4) {
-                this.bytesRead = bytesRead;
-                return;
+        // Read 4-bytes header, followed by 4-bytes request ID for multiplexed requests
+        if (requestSize < 0) {
+            if (bytesRead < RpcPacket.HEADER_SIZE) {
+                bytesRead += super.read(buffer, bytesRead, RpcPacket.HEADER_SIZE - bytesRead);
+                if (bytesRead < RpcPacket.HEADER_SIZE) {
+                    this.bytesRead = bytesRead;
+                    return;
+                }
+            }
+
+            boolean multiplexed = RpcPacket.hasRequestId(buffer);
+            if (multiplexed && bytesRead < RpcPacket.MULTIPLEXED_HEADER_SIZE) {
+                bytesRead += super.read(buffer, bytesRead, RpcPacket.MULTIPLEXED_HEADER_SIZE - bytesRead);
+                if (bytesRead < RpcPacket.MULTIPLEXED_HEADER_SIZE) {
+                    this.bytesRead = bytesRead;
+                    return;
+                }
             }
             bytesRead = 0;
 
             requestSize = this.requestSize = RpcPacket.getSize(buffer, socket);
-            if (requestSize > buffer.length) {
+            requestId = this.requestId = multiplexed ? RpcPacket.getInt(buffer, 4) : NO_REQUEST_ID;
+            requestCompressed = RpcPacket.isCompressed(buffer);
+
+            if (multiplexed && requestSize == 0) {
+                this.requestSize = -1;
+                this.bytesRead = 0;
+                handleHandshake(requestId);
+                return;
+            } else if (requestSize > buffer.length) {
                 buffer = this.buffer = new byte[requestSize];
             }
         }
@@ -71,13 +99,19 @@ public class RpcSession<S> extends Session {
 
         // Request is complete - deserialize it
         this.bytesRead = 0;
-        this.requestSize = 0;
+        this.requestSize = -1;
+        int requestId = this.requestId;
 
         final Object request;
         try {
-            request = new DeserializeStream(buffer, requestSize).readObject();
+            if (requestCompressed) {
+                byte[] data = RpcPacket.decompress(buffer, requestSize, socket);
+                request = new DeserializeStream(data).readObject();
+            } else {
+                request = new DeserializeStream(buffer, requestSize).readObject();
+            }
         } catch (SerializerNotFoundException e) {
-            writeResponse(e);
+            writeResponse(e, requestId);
             return;
         } catch (Exception e) {
             handleDeserializationException(e);
@@ -90,30 +124,86 @@ public class RpcSession<S> extends Session {
         }
 
         // Perform the invocation
-        if (server.getWorkersUsed()) {
+        if (request instanceof RemoteCall[]) {
+            invokeBatch((RemoteCall[]) request, requestId);
+            return;
+        }
+
+        String group = server.workerGroupOf(request);
+        if (group != null && server.hasWorkerGroup(group)) {
             try {
-                server.asyncExecute(new AsyncRequest(request));
+                server.asyncExecute(group, new AsyncRequest(request, requestId));
+                server.incRequestsProcessed();
+            } catch (RejectedExecutionException e) {
+                handleRejectedExecution(e, request);
+                server.incRequestsRejected();
+            }
+        } else if (server.getWorkersUsed()) {
+            try {
+                executor().execute(new AsyncRequest(request, requestId));
                 server.incRequestsProcessed();
             } catch (RejectedExecutionException e) {
                 handleRejectedExecution(e, request);
                 server.incRequestsRejected();
             }
         } else {
-            writeResponse(invoke(request));
+            writeResponse(invokeForResult(request), requestId);
             server.incRequestsProcessed();
         }
     }
 
+    protected final Executor executor() {
+        Executor executor = this.executor;
+        if (executor == null) {
+            this.executor = executor = server.newSessionExecutor();
+        }
+        return executor;
+    }
+
+    // Answers the request being read by the selector thread, e.g. from handleRejectedExecution
     protected void writeResponse(Object response) throws IOException {
-        CalcSizeStream css = new CalcSizeStream();
-        css.writeObject(response);
-        int responseSize = css.count();
-        byte[] buffer = new byte[responseSize + 4];
+        writeResponse(response, requestId);
+    }
+
+    // Multiplexed responses are written as a whole, so responses to concurrent requests never interleave
+    protected void writeResponse(Object response, int requestId) throws IOException {
+        GrowableSerializeStream ss = RpcPacket.serialize(response, requestId);
+        try {
+            byte[] buffer = ss.array();
+            int length = ss.count();
+            int headerSize = requestId == NO_REQUEST_ID ? RpcPacket.HEADER_SIZE : RpcPacket.MULTIPLEXED_HEADER_SIZE;
 
-        DataStream ds = css.hasCycles() ? new SerializeStream(buffer) : new DataStream(buffer);
-        ds.writeInt(responseSize);
-        ds.writeObject(response);
+            if (compressResponses && length - headerSize >= server.compressionThreshold) {
+                byte[] compressed = RpcPacket.compress(buffer, length, headerSize);
+                if (compressed != null) {
+                    super.write(compressed, 0, compressed.length);
+                    return;
+                }
+            }
 
+            // The buffer is reused by this thread, so the part left in the write queue is copied out
+            TransientQueueItem item = new TransientQueueItem(buffer, length);
+            super.write(item);
+            synchronized (this) {
+                item.detach();
+            }
+        } finally {
+            RpcPacket.release(ss);
+        }
+    }
+
+    protected void handleHandshake(int clientCapabilities) throws IOException {
+        int capabilities = clientCapabilities & RpcPacket.SERVER_CAPABILITIES;
+        if ((capabilities & RpcPacket.CAPABILITY_COMPRESSION) != 0 && server.compressionThreshold > 0) {
+            compressResponses = true;
+        }
+        writeHandshake(capabilities);
+    }
+
+    protected void writeHandshake(int capabilities) throws IOException {
+        byte[] buffer = new byte[RpcPacket.MULTIPLEXED_HEADER_SIZE];
+        RpcPacket.putInt(buffer, 0, RpcPacket.FLAG_REQUEST_ID);
+        RpcPacket.putInt(buffer, 4, capabilities);
         super.write(buffer, 0, buffer.length);
     }
 
@@ -122,6 +212,54 @@ public class RpcSession<S> extends Session {
         return remoteCall.method().invoke(server.service, remoteCall.args());
     }
 
+    // By default the calls of a batch run one after another as a single request.
+    // With parallelBatches, each call runs on its own worker, in its worker group if any
+    protected void invokeBatch(RemoteCall[] calls, int requestId) throws IOException {
+        Batch batch = new Batch(calls, requestId);
+        if (server.parallelBatches && server.getWorkersUsed() && calls.length > 1) {
+            for (int i = 0; i < calls.length; i++) {
+                try {
+                    server.asyncExecute(server.workerGroupOf(calls[i]), new BatchCall(batch, i));
+                } catch (RejectedExecutionException e) {
+                    batch.complete(i, e);
+                }
+            }
+            server.incRequestsProcessed();
+        } else if (server.getWorkersUsed()) {
+            try {
+                executor().execute(batch);
+                server.incRequestsProcessed();
+            } catch (RejectedExecutionException e) {
+                handleRejectedExecution(e, calls);
+                server.incRequestsRejected();
+            }
+        } else {
+            batch.run();
+            server.incRequestsProcessed();
+        }
+    }
+
+    // An exception thrown by the service method is sent back as the result of the call,
+    // so that it fails only this call and not the other requests multiplexed over the session
+    protected Object invokeForResult(Object request) throws Exception {
+        try {
+            return invoke(request);
+        } catch (InvocationTargetException e) {
+            return e.getCause();
+        }
+    }
+
+    // A failed call of a batch yields its exception in place of the result
+    protected Object invokeBatchCall(RemoteCall call) {
+        try {
+            return invoke(call);
+        } catch (InvocationTargetException e) {
+            return e.getCause();
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
     protected void handleDeserializationException(Exception e) throws IOException {
         writeResponse(e);
         log.error("Cannot deserialize request from " + getRemoteHost(), e);
@@ -132,17 +270,89 @@ public class RpcSession<S> extends Session {
         log.error("RejectedExecutionException for request: " + request);
     }
 
+    static class TransientQueueItem extends ArrayQueueItem {
+
+        TransientQueueItem(byte[] data, int count) {
+            super(data, 0, count, 0);
+        }
+
+        // Must be called under the session lock, which also guards the write queue
+        void detach() {
+            int remaining = count - written;
+            if (remaining > 0) {
+                data = Arrays.copyOfRange(data, offset + written, offset + count);
+                offset = 0;
+                count = remaining;
+                written = 0;
+            }
+        }
+    }
+
+    private class Batch implements Runnable {
+        private final RemoteCall[] calls;
+        private final Object[] results;
+        private final int requestId;
+        private final AtomicInteger remaining;
+
+        Batch(RemoteCall[] calls, int requestId) {
+            this.calls = calls;
+            this.results = new Object[calls.length];
+            this.requestId = requestId;
+            this.remaining = new AtomicInteger(calls.length);
+        }
+
+        void complete(int index, Object result) {
+            results[index] = result;
+            if (remaining.decrementAndGet() == 0) {
+                try {
+                    writeResponse(results, requestId);
+                } catch (Throwable e) {
+                    handleException(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < calls.length; i++) {
+                results[i] = invokeBatchCall(calls[i]);
+            }
+            try {
+                writeResponse(results, requestId);
+            } catch (Throwable e) {
+                handleException(e);
+            }
+        }
+    }
+
+    private class BatchCall implements Runnable {
+        private final Batch batch;
+        private final int index;
+
+        BatchCall(Batch batch, int index) {
+            this.batch = batch;
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            batch.complete(index, invokeBatchCall(batch.calls[index]));
+        }
+    }
+
     private class AsyncRequest implements Runnable {
         private final Object request;
+        private final int requestId;
 
-        AsyncRequest(Object request) {
+        AsyncRequest(Object request, int requestId) {
             this.request = request;
+            this.requestId = requestId;
         }
 
         @Override
         public void run() {
             try {
-                writeResponse(invoke(request));
+                writeResponse(invokeForResult(request), requestId);
             } catch (Throwable e) {
                 handleException(e);
             }
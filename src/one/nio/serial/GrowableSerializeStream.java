@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.serial;
+
+import java.util.Arrays;
+
+// SerializeStream into a heap array that grows on demand, so an object graph can be written
+// in a single pass without sizing it first with CalcSizeStream. reset() prepares the stream
+// for the next object, which allows to keep one instance per thread
+public class GrowableSerializeStream extends SerializeStream {
+
+    public GrowableSerializeStream(int capacity) {
+        super(new byte[capacity]);
+    }
+
+    // Discards written data and objects; the first `position` bytes are left for a header
+    public void reset(int position) {
+        this.offset = address + position;
+        this.context = new SerializationContext();
+    }
+
+    @Override
+    protected long alloc(int size) {
+        long currentOffset = offset;
+        if ((offset = currentOffset + size) > limit) {
+            limit = Math.max(offset, limit * 2);
+            array = Arrays.copyOf(array, (int) (limit - address));
+        }
+        return currentOffset;
+    }
+}
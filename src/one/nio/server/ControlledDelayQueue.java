@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package one.nio.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Worker queue with CoDel-style (controlled delay) overload detection.
+// A task is handed to an idle worker or makes the pool grow up to maxWorkers; it is queued only
+// when all workers are busy. New tasks are rejected once the oldest queued task has waited maxDelay
+// (queueTime); tasks already in the queue do not expire and run however long they have waited.
+// With maxDelay = 0, the default, a task that finds no free worker is rejected right away.
+// The pool is considered overloaded when even the shortest queue delay observed during the last interval
+// exceeded the target, i.e. the queue does not drain. Delays are sampled both when a task is dequeued
+// and, from the oldest queued task, when a new one arrives, so stuck workers are noticed, too.
+// While overloaded, new tasks are rejected as soon as the oldest queued task has waited
+// more than twice the target, so clients get a fast rejection instead of a long wait.
+// The overload state ends after an interval without rejections in which the delay went below the target.
+// Short bursts that drain within an interval are queued as usual.
+// Queued tasks are wrapped to carry their enqueue time. remove() and drainTo(), which
+// ThreadPoolExecutor uses for remove(task) and shutdownNow(), work with the submitted tasks;
+// iterating over getQueue() yields the wrappers.
+final class ControlledDelayQueue extends LinkedBlockingQueue<Runnable> {
+    private final AtomicInteger idleWorkers = new AtomicInteger();
+    private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong intervalEnd = new AtomicLong(System.nanoTime());
+    private ThreadPoolExecutor executor;
+    private volatile long maxDelay;
+    private volatile long target;
+    private volatile long interval;
+    private volatile boolean overloaded;
+    private volatile boolean shed;
+
+    ControlledDelayQueue(int capacity, long maxDelayMicros, long targetMillis, long intervalMillis) {
+        super(capacity);
+        setControl(maxDelayMicros, targetMillis, intervalMillis);
+    }
+
+    void setExecutor(ThreadPoolExecutor executor) {
+        this.executor = executor;
+    }
+
+    void setControl(long maxDelayMicros, long targetMillis, long intervalMillis) {
+        this.maxDelay = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.target = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    boolean isOverloaded() {
+        return overloaded;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        long now = System.nanoTime();
+
+        // Returning false makes ThreadPoolExecutor start a new worker or reject the task
+        if (idleWorkers.get() == 0) {
+            Task head = (Task) peek();
+            long delay = head == null ? 0 : now - head.enqueueTime;
+            updateDelay(delay, now);
+
+            if (executor.getPoolSize() < executor.getMaximumPoolSize()) {
+                return false;
+            }
+            if (delay >= maxDelay || (overloaded && delay > target * 2)) {
+                shed = true;
+                return false;
+            }
+        }
+
+        return super.offer(new Task(task, now));
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        idleWorkers.incrementAndGet();
+        try {
+            return dequeued((Task) super.take());
+        } finally {
+            idleWorkers.decrementAndGet();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        idleWorkers.incrementAndGet();
+        try {
+            return dequeued((Task) super.poll(timeout, unit));
+        } finally {
+            idleWorkers.decrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o instanceof Task) {
+            return super.remove(o);
+        }
+        for (Runnable queued : this) {
+            if (((Task) queued).task == o) {
+                return super.remove(queued);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        ArrayList<Runnable> queued = new ArrayList<Runnable>();
+        int count = super.drainTo(queued, maxElements);
+        for (Runnable task : queued) {
+            c.add(((Task) task).task);
+        }
+        return count;
+    }
+
+    private Runnable dequeued(Task task) {
+        if (task != null) {
+            long now = System.nanoTime();
+            updateDelay(now - task.enqueueTime, now);
+        }
+        return task;
+    }
+
+    // Lock-free: the thread that moves intervalEnd forward evaluates the interval that has ended.
+    // A sample racing with that lands in the next interval, which does not change the outcome
+    private void updateDelay(long delay, long now) {
+        for (long min; delay < (min = minDelay.get()); ) {
+            if (minDelay.compareAndSet(min, delay)) {
+                break;
+            }
+        }
+
+        long end = intervalEnd.get();
+        if (now - end >= 0 && intervalEnd.compareAndSet(end, now + interval)) {
+            overloaded = minDelay.getAndSet(Long.MAX_VALUE) > target || (overloaded && shed);
+            shed = false;
+        }
+    }
+
+    private static final class Task implements Runnable {
+        final Runnable task;
+        final long enqueueTime;
+
+        Task(Runnable task, long enqueueTime) {
+            this.task = task;
+            this.enqueueTime = enqueueTime;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
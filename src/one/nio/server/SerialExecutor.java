@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package one.nio.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Runs tasks one at a time in submission order on top of a shared pool.
+// Used per session, so consecutive requests of a connection are handled by the same worker
+// while it has work, and the session state is never touched by two workers at once.
+// A busy session gives up its worker after a batch of tasks to let other sessions run.
+public class SerialExecutor implements Executor, Runnable {
+    private static final Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+
+    private static final int MAX_QUEUED_TASKS = 256;
+    private static final int BATCH_SIZE = 16;
+
+    private final Executor executor;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>(4);
+    private boolean scheduled;
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            if (tasks.size() >= MAX_QUEUED_TASKS) {
+                throw new RejectedExecutionException("Too many tasks queued for the session");
+            }
+            tasks.addLast(task);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                tasks.removeLast();
+                scheduled = false;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Runnable task;
+                synchronized (this) {
+                    if ((task = tasks.pollFirst()) == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    log.error("Uncaught exception in " + task, e);
+                }
+            }
+
+            // Yield the worker; if the pool refuses, keep draining here since the tasks are already accepted
+            try {
+                executor.execute(this);
+                return;
+            } catch (RejectedExecutionException e) {
+                // Continue with the next batch
+            }
+        }
+    }
+}
@@ -27,6 +27,10 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class Server implements ServerMXBean {
@@ -42,8 +46,10 @@ public class Server implements ServerMXBean {
     protected AcceptorThread[] acceptors;
     protected SelectorThread[] selectors;
     protected WorkerPool workers;
+    protected final Map<String, WorkerPool> workerGroups = new ConcurrentHashMap<String, WorkerPool>();
     protected CleanupThread cleanup;
     protected boolean useWorkers;
+    protected boolean serialSessions;
 
     public Server(ConnectionString conn) throws IOException {
         this.conn = conn;
@@ -63,7 +69,10 @@ public class Server implements ServerMXBean {
         boolean affinity = conn.getBooleanParam("affinity", false);
         int minWorkers = conn.getIntParam("minWorkers", 0);
         int maxWorkers = conn.getIntParam("maxWorkers", 1000);
+        int queueCapacity = conn.getIntParam("queueCapacity", 65536);
         long queueTime = conn.getLongParam("queueTime", 0);
+        long queueTarget = conn.getLongParam("queueTarget", 5);
+        long queueInterval = conn.getLongParam("queueInterval", 100);
         int keepAlive = conn.getIntParam("keepalive", 0);
 
         this.acceptors = new AcceptorThread[hosts.length];
@@ -77,8 +86,9 @@ public class Server implements ServerMXBean {
             this.selectors[i] = new SelectorThread(i, affinity ? 1L << (i % processors) : 0);
         }
 
-        this.workers = new WorkerPool(minWorkers, maxWorkers, queueTime);
+        this.workers = new WorkerPool(null, minWorkers, maxWorkers, queueCapacity, queueTime, queueTarget, queueInterval);
         this.useWorkers = conn.getStringParam("minWorkers") != null || conn.getStringParam("maxWorkers") != null;
+        this.serialSessions = conn.getBooleanParam("serialSessions", false);
 
         if (keepAlive > 0) {
             this.cleanup = new CleanupThread(this, keepAlive);
@@ -92,6 +102,8 @@ public class Server implements ServerMXBean {
         if (conn.getBooleanParam("jmx", true)) {
             Management.registerMXBean(this, "one.nio.server:type=Server,port=" + port);
         }
+
+        configureWorkerGroups(conn);
     }
 
     public boolean reconfigure(ConnectionString conn) throws IOException {
@@ -108,7 +120,9 @@ public class Server implements ServerMXBean {
 
         workers.setCorePoolSize(conn.getIntParam("minWorkers", 0));
         workers.setMaximumPoolSize(conn.getIntParam("maxWorkers", 1000));
-        workers.setQueueTime(conn.getLongParam("queueTime", 0));
+        workers.setQueueControl(conn.getLongParam("queueTime", 0),
+                conn.getLongParam("queueTarget", 5), conn.getLongParam("queueInterval", 100));
+        configureWorkerGroups(conn);
         useWorkers = conn.getStringParam("minWorkers") != null || conn.getStringParam("maxWorkers") != null;
 
         int processors = Runtime.getRuntime().availableProcessors();
@@ -159,6 +173,63 @@ public class Server implements ServerMXBean {
             workers.gracefulShutdown(30000L);
             workers = null;
         }
+        for (WorkerPool group : workerGroups.values()) {
+            group.gracefulShutdown(30000L);
+        }
+        workerGroups.clear();
+    }
+
+    // workerGroups=name:maxWorkers,... creates isolated pools for @WorkerGroup methods
+    private void configureWorkerGroups(ConnectionString conn) {
+        String groups = conn.getStringParam("workerGroups");
+        if (groups != null) {
+            for (StringTokenizer st = new StringTokenizer(groups, ","); st.hasMoreTokens(); ) {
+                String group = st.nextToken().trim();
+                int p = group.indexOf(':');
+                if (p > 0) {
+                    addWorkerGroup(group.substring(0, p), 0, Integer.parseInt(group.substring(p + 1)));
+                } else {
+                    addWorkerGroup(group, 0, conn.getIntParam("maxWorkers", 1000));
+                }
+            }
+        }
+    }
+
+    // Creates or resizes an isolated worker pool for tasks submitted with asyncExecute(group, ...)
+    public synchronized void addWorkerGroup(String name, int minWorkers, int maxWorkers) {
+        WorkerPool group = workerGroups.get(name);
+        if (group != null) {
+            if (maxWorkers < group.getCorePoolSize()) {
+                group.setCorePoolSize(minWorkers);
+                group.setMaximumPoolSize(maxWorkers);
+            } else {
+                group.setMaximumPoolSize(maxWorkers);
+                group.setCorePoolSize(minWorkers);
+            }
+            group.setQueueControl(conn.getLongParam("queueTime", 0),
+                    conn.getLongParam("queueTarget", 5), conn.getLongParam("queueInterval", 100));
+            return;
+        }
+
+        group = new WorkerPool(name, minWorkers, maxWorkers,
+                conn.getIntParam("queueCapacity", 65536),
+                conn.getLongParam("queueTime", 0),
+                conn.getLongParam("queueTarget", 5),
+                conn.getLongParam("queueInterval", 100));
+        workerGroups.put(name, group);
+
+        if (conn.getBooleanParam("jmx", true)) {
+            Management.registerMXBean(group, WorkerGroupMXBean.class,
+                    "one.nio.server:type=WorkerGroup,port=" + conn.getPort() + ",name=" + name);
+        }
+    }
+
+    public boolean hasWorkerGroup(String name) {
+        return workerGroups.containsKey(name);
+    }
+
+    public WorkerGroupMXBean getWorkerGroup(String name) {
+        return workerGroups.get(name);
     }
 
     public void registerShutdownHook() {
@@ -217,6 +288,16 @@ public class Server implements ServerMXBean {
         return workers.getActiveCount();
     }
 
+    @Override
+    public int getWorkersQueued() {
+        return workers.getQueue().size();
+    }
+
+    @Override
+    public boolean getWorkersOverloaded() {
+        return workers.isOverloaded();
+    }
+
     @Override
     public long getAcceptedSessions() {
         long result = 0;
@@ -308,10 +389,27 @@ public class Server implements ServerMXBean {
         requestsRejected.set(0);
     }
 
+    // True if called from a thread that processes socket events
+    public static boolean inSelectorThread() {
+        return Thread.currentThread() instanceof SelectorThread;
+    }
+
     public final void asyncExecute(Runnable command) {
         workers.execute(command);
     }
 
+    // Executor for async tasks of one session. With serialSessions, the tasks run in order one at a time;
+    // otherwise they go directly to the worker pool and may run in parallel
+    public Executor newSessionExecutor() {
+        return serialSessions ? new SerialExecutor(workers) : workers;
+    }
+
+    // Runs the command in the named worker group, or in the common pool if there is no such group
+    public final void asyncExecute(String group, Runnable command) {
+        WorkerPool pool = group == null ? null : workerGroups.get(group);
+        (pool != null ? pool : workers).execute(command);
+    }
+
     private static final class SelectorStats {
         long expireTime;
         long operations;
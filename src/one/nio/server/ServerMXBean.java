@@ -21,6 +21,8 @@ public interface ServerMXBean {
     boolean getWorkersUsed();
     int getWorkers();
     int getWorkersActive();
+    int getWorkersQueued();
+    boolean getWorkersOverloaded();
     long getAcceptedSessions();
     long getRejectedSessions();
     int getSelectorCount();
@@ -19,25 +19,40 @@ package one.nio.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-final class WorkerPool extends ThreadPoolExecutor implements ThreadFactory, Thread.UncaughtExceptionHandler {
+final class WorkerPool extends ThreadPoolExecutor
+        implements ThreadFactory, Thread.UncaughtExceptionHandler, RejectedExecutionHandler, WorkerGroupMXBean {
     private static final Logger log = LoggerFactory.getLogger(WorkerPool.class);
 
+    private final String name;
     private final AtomicInteger index;
+    private final AtomicLong rejected;
 
-    WorkerPool(int minThreads, int maxThreads, long queueTime) {
-        super(minThreads, maxThreads, 60L, TimeUnit.SECONDS, new WaitingSynchronousQueue<Runnable>(queueTime));
+    WorkerPool(String name, int minThreads, int maxThreads, int queueCapacity,
+               long queueTime, long queueTarget, long queueInterval) {
+        super(minThreads, maxThreads, 60L, TimeUnit.SECONDS,
+                new ControlledDelayQueue(queueCapacity, queueTime, queueTarget, queueInterval));
+        ((ControlledDelayQueue) getQueue()).setExecutor(this);
         setThreadFactory(this);
+        setRejectedExecutionHandler(this);
+        this.name = name;
         this.index = new AtomicInteger();
+        this.rejected = new AtomicLong();
     }
 
-    void setQueueTime(long queueTime) {
-        ((WaitingSynchronousQueue) getQueue()).queueTime = queueTime;
+    void setQueueControl(long queueTime, long queueTarget, long queueInterval) {
+        ((ControlledDelayQueue) getQueue()).setControl(queueTime, queueTarget, queueInterval);
+    }
+
+    boolean isOverloaded() {
+        return ((ControlledDelayQueue) getQueue()).isOverloaded();
     }
 
     void gracefulShutdown(long timeout) {
@@ -52,7 +67,8 @@ final class WorkerPool extends ThreadPoolExecutor implements ThreadFactory, Thre
 
     @Override
     public Thread newThread(Runnable r) {
-        Thread thread = new Thread(r, "NIO Worker #" + index.incrementAndGet());
+        String prefix = name == null ? "NIO Worker #" : "NIO Worker " + name + " #";
+        Thread thread = new Thread(r, prefix + index.incrementAndGet());
         thread.setUncaughtExceptionHandler(this);
         return thread;
     }
@@ -62,21 +78,47 @@ final class WorkerPool extends ThreadPoolExecutor implements ThreadFactory, Thre
         log.error("Uncaught exception in " + t, e);
     }
 
-    private static final class WaitingSynchronousQueue<E> extends SynchronousQueue<E> {
-        long queueTime;
-
-        WaitingSynchronousQueue(long queueTime) {
-            this.queueTime = queueTime;
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        if (isShutdown()) {
+            throw new RejectedExecutionException("Worker pool is shut down");
         }
+        rejected.incrementAndGet();
+        throw new RejectedExecutionException(name == null ? "Worker pool is full" : "Worker group " + name + " is full");
+    }
 
-        @Override
-        public boolean offer(E element) {
-            try {
-                return super.offer(element, queueTime, TimeUnit.MICROSECONDS);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return false;
-            }
-        }
+    @Override
+    public int getWorkers() {
+        return getPoolSize();
+    }
+
+    @Override
+    public int getWorkersActive() {
+        return getActiveCount();
+    }
+
+    @Override
+    public int getMaxWorkers() {
+        return getMaximumPoolSize();
+    }
+
+    @Override
+    public int getQueued() {
+        return getQueue().size();
+    }
+
+    @Override
+    public boolean getOverloaded() {
+        return isOverloaded();
+    }
+
+    @Override
+    public long getCompletedTasks() {
+        return getCompletedTaskCount();
+    }
+
+    @Override
+    public long getRejectedTasks() {
+        return rejected.get();
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.cluster;
+
+import junit.framework.TestCase;
+
+public class LatencySamplerTest extends TestCase {
+
+    public void testNotEnoughSamples() {
+        LatencySampler sampler = new LatencySampler(0.95);
+        assertEquals(-1, sampler.getValue());
+        for (int i = 0; i < 127; i++) {
+            sampler.record(i);
+        }
+        assertEquals(-1, sampler.getValue());
+    }
+
+    public void testPercentile() {
+        LatencySampler median = new LatencySampler(0.5);
+        LatencySampler p99 = new LatencySampler(0.99);
+
+        // Recorded in descending order to check that the samples are sorted
+        for (int i = 128; i >= 1; i--) {
+            median.record(i);
+            p99.record(i);
+        }
+        assertEquals(65, median.getValue());
+        assertEquals(127, p99.getValue());
+    }
+
+    public void testOldSamplesDiscarded() {
+        LatencySampler sampler = new LatencySampler(0.5);
+        for (int i = 0; i < 1024; i++) {
+            sampler.record(1000000);
+        }
+        assertEquals(1000000, sampler.getValue());
+
+        // The window holds the last 1024 samples: 640 fast ones outweigh the slow ones
+        for (int i = 0; i < 640; i++) {
+            sampler.record(1000);
+        }
+        assertEquals(1000, sampler.getValue());
+    }
+
+    public void testRefreshInterval() {
+        LatencySampler sampler = new LatencySampler(0.5);
+        for (int i = 0; i < 128; i++) {
+            sampler.record(10);
+        }
+        assertEquals(10, sampler.getValue());
+
+        // The estimate is not updated until the next 128 samples are recorded
+        for (int i = 0; i < 127; i++) {
+            sampler.record(20);
+        }
+        assertEquals(10, sampler.getValue());
+        sampler.record(20);
+        assertEquals(20, sampler.getValue());
+    }
+}
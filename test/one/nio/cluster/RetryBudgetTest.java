@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.cluster;
+
+import junit.framework.TestCase;
+
+public class RetryBudgetTest extends TestCase {
+
+    // Keeps the test within one second of the per-second reserve
+    private static void awaitSecondStart() throws InterruptedException {
+        long millis = System.currentTimeMillis() % 1000;
+        if (millis > 500) {
+            Thread.sleep(1000 - millis);
+        }
+    }
+
+    public void testDepositWithdraw() throws Exception {
+        awaitSecondStart();
+        RetryBudget budget = new RetryBudget(0.1, 0);
+        assertFalse(budget.tryWithdraw());
+
+        for (int i = 0; i < 9; i++) {
+            budget.deposit();
+        }
+        assertFalse(budget.tryWithdraw());
+
+        budget.deposit();
+        assertEquals(1.0, budget.getBalance(), 1e-9);
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+        assertEquals(0.0, budget.getBalance(), 1e-9);
+
+        for (int i = 0; i < 50; i++) {
+            budget.deposit();
+        }
+        int retries = 0;
+        while (budget.tryWithdraw()) {
+            retries++;
+        }
+        assertEquals(5, retries);
+    }
+
+    public void testMaxBalance() throws Exception {
+        awaitSecondStart();
+        RetryBudget budget = new RetryBudget(0.1, 0);
+        for (int i = 0; i < 100000; i++) {
+            budget.deposit();
+        }
+        assertEquals(100.0, budget.getBalance(), 1e-9);
+
+        // A small ratio still allows to save up a whole retry
+        RetryBudget small = new RetryBudget(0.001, 0);
+        for (int i = 0; i < 100000; i++) {
+            small.deposit();
+        }
+        assertEquals(1.0, small.getBalance(), 1e-9);
+    }
+
+    public void testReserve() throws Exception {
+        awaitSecondStart();
+        RetryBudget budget = new RetryBudget(0.1, 3);
+        assertTrue(budget.tryWithdraw());
+        assertTrue(budget.tryWithdraw());
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+
+        // Deposits are spent first and do not use up the reserve
+        for (int i = 0; i < 10; i++) {
+            budget.deposit();
+        }
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+
+        // The reserve is renewed every second
+        Thread.sleep(1000 - System.currentTimeMillis() % 1000 + 10);
+        assertTrue(budget.tryWithdraw());
+        assertTrue(budget.tryWithdraw());
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import one.nio.net.ConnectionString;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class AsyncHttpClientTest {
+
+    public static void main(String[] args) throws Exception {
+        AsyncHttpClient client = new AsyncHttpClient(new ConnectionString(args[0]));
+        String path = args[1];
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        long startTime = System.nanoTime();
+        List<CompletableFuture<Response>> futures = new ArrayList<CompletableFuture<Response>>(count);
+        for (int i = 0; i < count; i++) {
+            futures.add(client.get(path));
+        }
+
+        int success = 0;
+        for (CompletableFuture<Response> future : futures) {
+            if (future.get().getStatus() == 200) {
+                success++;
+            }
+        }
+
+        long elapsed = (System.nanoTime() - startTime) / 1000000;
+        System.out.println(success + " of " + count + " requests succeeded in " + elapsed + " ms");
+        client.close();
+    }
+}
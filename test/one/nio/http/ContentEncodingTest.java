@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ContentEncodingTest extends TestCase {
+
+    public void testRoundTrip() throws Exception {
+        Random random = new Random();
+        for (String encoding : new String[] {"lz4", "gzip", "deflate"}) {
+            for (int i = 0; i < 100; i++) {
+                byte[] data = new byte[random.nextInt(100000)];
+                for (int j = 0; j < data.length; j++) {
+                    data[j] = (byte) ('a' + random.nextInt(4));
+                }
+                byte[] decoded = ContentEncoding.decode(encoding, ContentEncoding.encode(encoding, data));
+                assertTrue(encoding, Arrays.equals(data, decoded));
+            }
+        }
+    }
+
+    public void testAccepted() {
+        assertTrue(ContentEncoding.isAccepted("gzip, deflate", "gzip"));
+        assertTrue(ContentEncoding.isAccepted("gzip, deflate", "deflate"));
+        assertTrue(ContentEncoding.isAccepted("lz4;q=0.5, gzip", "lz4"));
+        assertTrue(ContentEncoding.isAccepted("*", "gzip"));
+        assertFalse(ContentEncoding.isAccepted("gzip;q=0, deflate", "gzip"));
+        assertFalse(ContentEncoding.isAccepted("identity", "gzip"));
+        assertFalse(ContentEncoding.isAccepted(null, "gzip"));
+    }
+
+    public void testExplicitOverridesWildcard() {
+        assertFalse(ContentEncoding.isAccepted("*, gzip;q=0", "gzip"));
+        assertFalse(ContentEncoding.isAccepted("gzip;q=0, *", "gzip"));
+        assertTrue(ContentEncoding.isAccepted("*, gzip;q=0", "deflate"));
+        assertTrue(ContentEncoding.isAccepted("*;q=0, gzip", "gzip"));
+        assertFalse(ContentEncoding.isAccepted("*;q=0, gzip", "deflate"));
+        assertFalse(ContentEncoding.isAccepted("*", "lz4"));
+    }
+
+    public void testSelectEncoding() {
+        ResponseCompressor compressor = new ResponseCompressor(0, 0);
+        assertEquals("lz4", compressor.selectEncoding("gzip, lz4"));
+        assertEquals("gzip", compressor.selectEncoding("gzip, deflate"));
+        assertEquals("gzip", compressor.selectEncoding("*"));
+        assertEquals("deflate", compressor.selectEncoding("*, gzip;q=0"));
+        assertEquals("gzip", compressor.selectEncoding("gzip, lz4;q=0"));
+        assertNull(compressor.selectEncoding("identity"));
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package one.nio.http;
+
+import one.nio.net.ConnectionString;
+
+import java.io.IOException;
+
+public class HttpProxyTest extends HttpServer {
+    private final HttpProxy proxy;
+
+    public HttpProxyTest(ConnectionString conn, HttpClient upstream) throws IOException {
+        super(conn);
+        this.proxy = new HttpProxy(upstream);
+    }
+
+    @Override
+    public void handleDefault(Request request, HttpSession session) throws IOException {
+        proxy.handleRequest(request, session);
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        proxy.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = args.length > 0 ? args[0] : "socket://0.0.0.0:8081";
+        String upstream = args.length > 1 ? args[1] : "http://127.0.0.1:8080";
+        HttpProxyTest server = new HttpProxyTest(new ConnectionString(url), new HttpClient(new ConnectionString(upstream)));
+        server.start();
+    }
+}
@@ -17,9 +17,13 @@
 package one.nio.http;
 
 import one.nio.net.ConnectionString;
+import one.nio.server.WorkerGroup;
 import one.nio.util.Utf8;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 public class HttpServerTest extends HttpServer {
 
@@ -32,12 +36,89 @@ public class HttpServerTest extends HttpServer {
         return Response.ok("Simple");
     }
 
+    @Path("/cached")
+    @Cached(ttl = 1000)
+    public Response handleCached() {
+        return Response.ok("Cached: " + System.currentTimeMillis());
+    }
+
+    @Path("/coalesced")
+    @SingleFlight
+    public Response handleCoalesced(@Param("delay=100") long delay) throws InterruptedException {
+        Thread.sleep(delay);
+        return Response.ok("Coalesced: " + System.currentTimeMillis());
+    }
+
+    @Path("/report")
+    @WorkerGroup("reports")
+    public Response handleReport(@Param("delay=1000") long delay) throws InterruptedException {
+        Thread.sleep(delay);
+        return Response.ok("Report: " + Thread.currentThread().getName());
+    }
+
     @Path({"/multi1", "/multi2"})
     public void handleMultiple(Request request, HttpSession session) throws IOException {
         Response response = Response.ok("Multiple: " + request.getPath());
         session.writeResponse(response);
     }
 
+    @Path("/chunked")
+    public void handleChunked(HttpSession session, @Param("n=10") int n) throws IOException {
+        session.startChunkedResponse(new Response(Response.OK));
+        for (int i = 0; i < n; i++) {
+            session.writeChunk(Utf8.toBytes("Chunk " + i + "\r\n"));
+        }
+        session.finish();
+    }
+
+    @Path("/async")
+    public CompletableFuture<Response> handleAsync(@Param("delay=0") final long delay) {
+        return CompletableFuture.supplyAsync(new Supplier<Response>() {
+            @Override
+            public Response get() {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Response.ok("Async: " + delay);
+            }
+        });
+    }
+
+    @Path("/echo")
+    public void handleEcho(Request request, HttpSession session) throws IOException {
+        session.upgradeToWebSocket(request, new WebSocketHandler() {
+            @Override
+            public void onOpen(WebSocket webSocket) {
+                // Nothing to do
+            }
+
+            @Override
+            public void onText(WebSocket webSocket, String message) {
+                try {
+                    webSocket.sendText(message);
+                } catch (IOException e) {
+                    webSocket.getSession().close();
+                }
+            }
+
+            @Override
+            public void onBinary(WebSocket webSocket, byte[] message) {
+                try {
+                    webSocket.sendBinary(message);
+                } catch (IOException e) {
+                    webSocket.getSession().close();
+                }
+            }
+
+            @Override
+            public void onClose(WebSocket webSocket, int code, String reason) {
+                // Nothing to do
+            }
+        });
+    }
+
     @Override
     public void handleRequest(Request request, HttpSession session) throws IOException {
         try {
@@ -70,6 +151,9 @@ public class HttpServerTest extends HttpServer {
     public static void main(String[] args) throws Exception {
         String url = args.length > 0 ? args[0] : "socket://0.0.0.0:8080";
         HttpServerTest server = new HttpServerTest(new ConnectionString(url));
+        if (args.length > 1) {
+            server.addStaticContent("/static/", new File(args[1]));
+        }
         server.start();
     }
 }
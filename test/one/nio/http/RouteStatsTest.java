@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import junit.framework.TestCase;
+
+public class RouteStatsTest extends TestCase {
+
+    private static void record(RouteStats stats, int count, long micros) {
+        for (int i = 0; i < count; i++) {
+            stats.record(micros * 1000);
+        }
+    }
+
+    public void testEmpty() {
+        RouteStats stats = new RouteStats("/empty");
+        assertEquals(0, stats.percentile(0.5));
+        assertEquals(0, stats.getLatency99());
+        assertEquals(0, stats.getAvgLatency());
+    }
+
+    public void testBuckets() {
+        RouteStats stats = new RouteStats("/buckets");
+        record(stats, 1, 0);
+        record(stats, 1, 1);
+        record(stats, 1, 3);
+        record(stats, 1, 4);
+        record(stats, 1, 1023);
+        record(stats, 1, 1024);
+
+        long[] histogram = stats.getLatencyHistogram();
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[1]);
+        assertEquals(1, histogram[2]);
+        assertEquals(1, histogram[3]);
+        assertEquals(1, histogram[10]);
+        assertEquals(1, histogram[11]);
+        assertEquals(6, stats.getRequests());
+        assertEquals(1024, stats.getMaxLatency());
+    }
+
+    public void testUpperBounds() {
+        RouteStats stats = new RouteStats("/bounds");
+        record(stats, 1, 100);
+        assertEquals(128, stats.percentile(0.5));
+
+        stats.reset();
+        record(stats, 1, 128);
+        assertEquals(256, stats.percentile(0.5));
+
+        // Latencies beyond the last bucket are counted in it
+        stats.reset();
+        record(stats, 1, 1L << 50);
+        assertEquals(1L << 39, stats.percentile(0.5));
+        assertEquals(1L << 50, stats.getMaxLatency());
+    }
+
+    public void testPercentiles() {
+        RouteStats stats = new RouteStats("/percentiles");
+        record(stats, 900, 100);
+        record(stats, 90, 1000);
+        record(stats, 9, 5000);
+        record(stats, 1, 50000);
+
+        assertEquals(1000, stats.getRequests());
+        assertEquals(128, stats.getLatency50());
+        assertEquals(128, stats.getLatency90());
+        assertEquals(1024, stats.getLatency99());
+        assertEquals(8192, stats.getLatency999());
+        assertEquals(65536, stats.percentile(1.0));
+        assertEquals(50000, stats.getMaxLatency());
+        assertEquals((900 * 100 + 90 * 1000 + 9 * 5000 + 50000) / 1000, stats.getAvgLatency());
+    }
+}
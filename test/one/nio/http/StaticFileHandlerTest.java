@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.http;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class StaticFileHandlerTest extends TestCase {
+
+    private static void assertRange(long start, long end, long[] range) {
+        assertNotNull(range);
+        assertTrue(Arrays.toString(range), Arrays.equals(new long[]{start, end}, range));
+    }
+
+    private static void assertUnsatisfiable(long[] range) {
+        assertNotNull(range);
+        assertEquals(0, range.length);
+    }
+
+    public void testClosedRange() {
+        assertRange(0, 99, StaticFileHandler.parseRange("bytes=0-99", 1000));
+        assertRange(500, 999, StaticFileHandler.parseRange("bytes=500-5000", 1000));
+        assertRange(999, 999, StaticFileHandler.parseRange("bytes=999-999", 1000));
+    }
+
+    public void testSuffixRange() {
+        assertRange(900, 999, StaticFileHandler.parseRange("bytes=-100", 1000));
+        assertRange(0, 999, StaticFileHandler.parseRange("bytes=-5000", 1000));
+        assertUnsatisfiable(StaticFileHandler.parseRange("bytes=-0", 1000));
+        assertUnsatisfiable(StaticFileHandler.parseRange("bytes=-100", 0));
+    }
+
+    public void testOpenEndedRange() {
+        assertRange(100, 999, StaticFileHandler.parseRange("bytes=100-", 1000));
+        assertRange(0, 0, StaticFileHandler.parseRange("bytes=0-", 1));
+    }
+
+    public void testUnsatisfiableRange() {
+        assertUnsatisfiable(StaticFileHandler.parseRange("bytes=1000-", 1000));
+        assertUnsatisfiable(StaticFileHandler.parseRange("bytes=2000-3000", 1000));
+        assertUnsatisfiable(StaticFileHandler.parseRange("bytes=0-", 0));
+    }
+
+    public void testIgnoredRange() {
+        assertNull(StaticFileHandler.parseRange("bytes=0-99,200-299", 1000));
+        assertNull(StaticFileHandler.parseRange("bytes=0-0, -1", 1000));
+        assertNull(StaticFileHandler.parseRange("items=0-99", 1000));
+        assertNull(StaticFileHandler.parseRange("bytes=-", 1000));
+        assertNull(StaticFileHandler.parseRange("bytes=100", 1000));
+        assertNull(StaticFileHandler.parseRange("bytes=99-0", 1000));
+        assertNull(StaticFileHandler.parseRange("bytes=a-b", 1000));
+    }
+
+    public void testContentType() {
+        assertEquals("image/png", StaticFileHandler.contentType("logo.PNG"));
+        assertEquals("application/wasm", StaticFileHandler.contentType("dir/app.wasm"));
+        assertEquals("application/octet-stream", StaticFileHandler.contentType("README"));
+        assertEquals("application/octet-stream", StaticFileHandler.contentType("data.unknown"));
+    }
+
+    public void testResolve() {
+        File root = new File(System.getProperty("java.io.tmpdir"), "StaticFileHandlerTest");
+        StaticFileHandler handler = new StaticFileHandler("/static/", root, null);
+
+        assertEquals(new File(root, "a/b.txt"), handler.resolve("/static/a/b.txt"));
+        assertEquals(new File(root, "a b+c.txt"), handler.resolve("/static/a%20b+c.txt"));
+        assertNull(handler.resolve("/other/a.txt"));
+    }
+
+    public void testResolveEscape() {
+        File root = new File(System.getProperty("java.io.tmpdir"), "StaticFileHandlerTest");
+        StaticFileHandler handler = new StaticFileHandler("/static/", root, null);
+
+        assertNull(handler.resolve("/static/.."));
+        assertNull(handler.resolve("/static/../etc/passwd"));
+        assertNull(handler.resolve("/static/a/../../etc/passwd"));
+        assertNull(handler.resolve("/static/a/.."));
+        assertNull(handler.resolve("/static/%2e%2e/etc/passwd"));
+        assertNull(handler.resolve("/static/a/%2E%2E/%2e%2e/etc/passwd"));
+        assertNull(handler.resolve("/static/a%2f..%2f..%2fetc/passwd"));
+        assertNull(handler.resolve("/static/..%5cetc%5cpasswd"));
+        assertNull(handler.resolve("/static/a.txt%00.png"));
+        assertNull(handler.resolve("/static/a.txt\0.png"));
+        assertNull(handler.resolve("/static/%zz"));
+    }
+}
@@ -17,10 +17,13 @@
 package one.nio.rpc.cache;
 
 import one.nio.net.ConnectionString;
+import one.nio.rpc.RemoteCall;
 import one.nio.rpc.RpcClient;
 
-import java.io.IOException;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
 
 public class RemoteCacheClient {
 
@@ -29,7 +32,8 @@ public class RemoteCacheClient {
             showUsage();
         }
 
-        CacheService<Entity> remoteCacheClient = getCacheService(args[0]);
+        RpcClient client = new RpcClient(new ConnectionString(args[0] + ':' + CacheService.DEFAULT_PORT));
+        CacheService<Entity> remoteCacheClient = getCacheService(client);
         String cmd = args[1];
         long id = Long.parseLong(args[2]);
 
@@ -40,20 +44,26 @@ public class RemoteCacheClient {
             Entity value = new Entity(id, args[3]);
             remoteCacheClient.set(id, value);
             System.out.println("set = " + value);
+        } else if (cmd.equals("mget")) {
+            // All gets in one round trip
+            Method get = CacheService.class.getMethod("get", long.class);
+            List<RemoteCall> calls = new ArrayList<RemoteCall>();
+            for (int i = 2; i < args.length; i++) {
+                calls.add(new RemoteCall(get, Long.parseLong(args[i])));
+            }
+            System.out.println("mget = " + client.invokeBatch(calls));
         } else {
             showUsage();
         }
     }
 
     private static void showUsage() {
-        System.out.println("Usage: java " + RemoteCacheClient.class.getName() + " <host> [get <id> | set <id> <name>]");
+        System.out.println("Usage: java " + RemoteCacheClient.class.getName() + " <host> [get <id> | set <id> <name> | mget <id>...]");
         System.exit(1);
     }
 
     @SuppressWarnings("unchecked")
-    private static CacheService<Entity> getCacheService(String host) throws IOException {
-        ConnectionString conn = new ConnectionString(host + ':' + CacheService.DEFAULT_PORT);
-        RpcClient client = new RpcClient(conn);
+    private static CacheService<Entity> getCacheService(RpcClient client) {
         return (CacheService<Entity>) Proxy.newProxyInstance(
                 CacheService.class.getClassLoader(), new Class[] { CacheService.class }, client);
     }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Odnoklassniki Ltd, Mail.Ru Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.nio.rpc.echo;
+
+import one.nio.net.ConnectionString;
+import one.nio.rpc.RpcClient;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+public class AsyncEchoClient {
+    private static final AtomicInteger messageCount = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        ConnectionString conn = new ConnectionString(args[0]);
+        RpcClient client = new RpcClient(conn);
+        Method echo = EchoService.class.getMethod("echo", byte[].class);
+
+        // Number of calls in flight over the shared multiplexed connections
+        int inFlight = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final Semaphore semaphore = new Semaphore(inFlight);
+
+        new Thread("Reporter") {
+            @Override
+            public void run() {
+                for (;;) {
+                    try {
+                        sleep(1000);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    System.out.println(messageCount.getAndSet(0) + " msg/s");
+                }
+            }
+        }.start();
+
+        Random random = new Random();
+        for (;;) {
+            final byte[] message = new byte[random.nextInt(100000)];
+            random.nextBytes(message);
+
+            semaphore.acquire();
+            client.invokeAsync(echo, (Object) message).whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(Object response, Throwable e) {
+                    semaphore.release();
+                    if (e != null) {
+                        e.printStackTrace();
+                    } else if (!Arrays.equals(message, (byte[]) response)) {
+                        System.err.println("Response does not match");
+                    } else {
+                        messageCount.incrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -18,6 +18,9 @@ package one.nio.serial;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -41,6 +44,59 @@ public class StreamsTest extends TestCase {
         Assert.assertEquals(place, place2);
     }
 
+    public void testGrowableSerializeStream() throws IOException, ClassNotFoundException {
+        ArrayList<Object> cycle = new ArrayList<Object>();
+        cycle.add("head");
+        cycle.add(cycle);
+
+        Object[] selfRef = new Object[3];
+        selfRef[0] = selfRef;
+        selfRef[1] = cycle;
+        selfRef[2] = selfRef;
+
+        HashMap<String, Object> repeated = new HashMap<String, Object>();
+        String shared = "shared value";
+        for (int i = 0; i < 100; i++) {
+            repeated.put("key" + i, i % 2 == 0 ? shared : cycle);
+        }
+
+        long[] largePrimitives = new long[100000];
+        for (int i = 0; i < largePrimitives.length; i++) {
+            largePrimitives[i] = (long) i * i;
+        }
+
+        // More than 0xffff objects so that back references need REF_RECURSIVE2
+        Object[] largeObjects = new Object[200000];
+        for (int i = 0; i < largeObjects.length; i++) {
+            largeObjects[i] = i % 3 == 0 ? largeObjects[i / 2] : "s" + i;
+        }
+
+        for (Object obj : new Object[]{cycle, selfRef, repeated, largePrimitives, largeObjects}) {
+            GrowableSerializeStream gss = new GrowableSerializeStream(16);
+            gss.writeObject(obj);
+            byte[] expected = serializeWithCalcSize(obj);
+            Assert.assertTrue(Arrays.equals(expected, Arrays.copyOf(gss.array(), gss.count())));
+
+            // reset() keeps the header and clears references to the previous object
+            gss.reset(8);
+            gss.writeObject(obj);
+            Assert.assertEquals(8 + expected.length, gss.count());
+            Assert.assertTrue(Arrays.equals(expected, Arrays.copyOfRange(gss.array(), 8, gss.count())));
+
+            Assert.assertNotNull(new DeserializeStream(expected).readObject());
+        }
+    }
+
+    private static byte[] serializeWithCalcSize(Object obj) throws IOException {
+        CalcSizeStream css = new CalcSizeStream();
+        css.writeObject(obj);
+        byte[] buf = new byte[css.count()];
+        SerializeStream out = new SerializeStream(buf);
+        out.writeObject(obj);
+        Assert.assertEquals(buf.length, out.count());
+        return buf;
+    }
+
     private static class Place implements Serializable {
         private String name;
         private String altName;